@@ -5,23 +5,47 @@ import simpledb.file.FileMgr;
 import simpledb.file.Page;
 import simpledb.log.LogMgr;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * An individual buffer. A databuffer wraps a page 
  * and stores information about its status,
  * such as the associated disk block,
  * the number of times the buffer has been pinned,
  * whether its contents have been modified,
- * and if so, the id and lsn of the modifying transaction.
+ * and if so, the ids of the modifying transactions
+ * and the lsn of the latest modification.
  * @author Edward Sciore
  */
 public class Buffer {
     private final FileMgr fm;
     private final LogMgr lm;
     private Page contents;
-    private BlockId blk = null;
-    private int pins = 0;
-    private int txnum = -1;
-    private int lsn = -1;
+    private volatile BlockId blk = null;
+    private final AtomicInteger pins = new AtomicInteger();
+    // held while the buffer's page is being written to disk
+    private final ReentrantLock ioLock = new ReentrantLock();
+    // the transactions that modified the page since it was last written;
+    // with record locks, several transactions may modify one page
+    private final Set<Integer> modifiers = ConcurrentHashMap.newKeySet();
+    private volatile long lsn = -1;
+    // the LSN of the first logged modification since the page was last written
+    private volatile long recLSN = -1;
+    // true if the page has changes that were not logged since it was last written
+    private volatile boolean unlogged = false;
+    // the number of modifications made to the page, and its value
+    // when the page was copied by the page cleaner
+    private volatile long version = 0;
+    private long copiedVersion;
+    // true from the time a prefetched block is loaded until it is first pinned
+    private volatile boolean prefetched = false;
+    // true while a read-ahead is filling the page
+    private volatile boolean reading = false;
+    // true if blocks are read as views of memory-mapped files
+    private volatile boolean mappedReads = false;
 
     public Buffer(FileMgr fm, LogMgr lm) {
         this.fm = fm;
@@ -37,41 +61,217 @@ public class Buffer {
         return blk;
     }
 
-    public void setModified(int txnum, int lsn) {
-        this.txnum = txnum;
+    public void setModified(int txnum, long lsn) {
+        if (lsn >= 0 && recLSN < 0) {
+            recLSN = lsn;
+        }
+        modifiers.add(txnum);
+        version++;
         // with a negative LSN, ログレコードがその更新のために生成されていないことを示す
         if (lsn >= 0) this.lsn = lsn;
+        else unlogged = true;
     }
 
     public boolean isPinned() {
-        return pins > 0;
+        return pins.get() > 0;
+    }
+
+    /**
+     * Returns true if the transaction modified the page
+     * since it was last written.
+     */
+    public boolean isModifiedBy(int txnum) {
+        return modifiers.contains(txnum);
+    }
+
+    /**
+     * Returns true if the page has modifications that were not logged,
+     * and so cannot be redone by recovery.
+     */
+    public boolean hasUnloggedChanges() {
+        return unlogged;
+    }
+
+    public boolean isModified() {
+        return !modifiers.isEmpty();
+    }
+
+    /**
+     * Returns the LSN of the most recent log record
+     * describing a modification to this buffer.
+     */
+    public long lsn() {
+        return lsn;
     }
 
-    public int modifyingTx() {
-        return txnum;
+    /**
+     * Returns the LSN of the oldest logged modification
+     * not yet written to disk, or -1 if there is none.
+     */
+    public long recLSN() {
+        return recLSN;
     }
 
     void assignToBlock(BlockId b) {
         flush();
         blk = b;
-        fm.read(blk, contents);
-        pins = 0;
+        if (!mappedReads || !fm.map(blk, contents)) {
+            fm.read(blk, contents);
+        }
+        pins.set(0);
+    }
+
+    void setMappedReads(boolean mappedReads) {
+        this.mappedReads = mappedReads;
+    }
+
+    /**
+     * Assigns the buffer to a block whose page is about to be
+     * filled by a read-ahead.
+     * The buffer's I/O lock is held until {@link #endRead} is called,
+     * and anyone who pins the buffer in the meantime waits for the page
+     * in {@link #awaitRead}.
+     */
+    void beginRead(BlockId b) {
+        flush();
+        ioLock.lock();
+        reading = true;
+        blk = b;
+    }
+
+    /**
+     * Completes a read begun by {@link #beginRead}.
+     * @param ok true if the page was read; otherwise the buffer
+     *           is left without a block
+     */
+    void endRead(boolean ok) {
+        if (ok) {
+            prefetched = true;
+        } else {
+            blk = null;
+        }
+        reading = false;
+        ioLock.unlock();
+    }
+
+    /**
+     * Waits until any read-ahead into this buffer has completed.
+     */
+    void awaitRead() {
+        if (reading) {
+            ioLock.lock();
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * Clears the buffer's prefetched flag.
+     * @return true if the buffer held a prefetched block that had not yet been pinned
+     */
+    boolean clearPrefetched() {
+        if (!prefetched) {
+            return false;
+        }
+        prefetched = false;
+        return true;
     }
 
     void flush() {
-        if (txnum >= 0) {
-            lm.flush(lsn);
-            fm.write(blk, contents);
-            txnum = -1;
+        ioLock.lock();
+        try {
+            // transactions change the page under the buffer's monitor,
+            // and with record locks may do so while it is being flushed;
+            // the log is forced outside the monitor so that they do not
+            // wait for it, and forced again if a change was logged meanwhile
+            while (isModified()) {
+                long flushLsn = lsn;
+                lm.flush(flushLsn);
+                synchronized (this) {
+                    if (lsn == flushLsn) {
+                        fm.write(blk, contents);
+                        modifiers.clear();
+                        recLSN = -1;
+                        unlogged = false;
+                        return;
+                    }
+                }
+            }
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * Copies a modified page into the specified page,
+     * so that the copy can be written out while the buffer is reused.
+     * The caller must ensure that the buffer cannot be pinned during the call.
+     * If the method returns true, the buffer's I/O lock is held until
+     * {@link #writeCopy} is called, so that the block is not re-read
+     * or flushed again before the copy reaches the disk.
+     * The buffer stays modified until then, so that a committing
+     * transaction or a checkpoint does not pass over it.
+     * @return true if the buffer was modified and not already being written
+     */
+    boolean copyForWriteBack(Page copy) {
+        if (!isModified() || !ioLock.tryLock()) {
+            return false;
+        }
+        copy.contents().put(contents.contents());
+        copiedVersion = version;
+        return true;
+    }
+
+    /**
+     * Writes a copy made by {@link #copyForWriteBack},
+     * honoring the write-ahead rule, and releases the I/O lock.
+     * The buffer is marked clean once the copy is on disk, unless
+     * the page was modified after it was copied; it then stays
+     * modified, with the recLSN of its older changes.
+     */
+    void writeCopy(BlockId b, long copyLsn, Page copy) {
+        try {
+            lm.flush(copyLsn);
+            fm.write(b, copy);
+            synchronized (this) {
+                if (version == copiedVersion) {
+                    modifiers.clear();
+                    recLSN = -1;
+                    unlogged = false;
+                }
+            }
+        } finally {
+            ioLock.unlock();
         }
     }
 
     void pin() {
-        pins++;
+        pins.incrementAndGet();
+    }
+
+    /**
+     * Adds a pin without any lock, but only if the buffer
+     * is already pinned by someone else.
+     * An unpinned buffer may be chosen for replacement at any moment,
+     * so it can only be pinned under its partition's lock.
+     * @return true if the pin was added
+     */
+    boolean tryRepin() {
+        int n = pins.get();
+        while (n > 0) {
+            if (pins.compareAndSet(n, n + 1)) {
+                return true;
+            }
+            n = pins.get();
+        }
+        return false;
     }
 
-    void unpin() {
-        pins--;
+    /**
+     * Removes a pin.
+     * @return true if the buffer is now unpinned
+     */
+    boolean unpin() {
+        return pins.decrementAndGet() == 0;
     }
 
 
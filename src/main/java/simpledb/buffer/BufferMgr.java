@@ -4,90 +4,209 @@ import simpledb.file.BlockId;
 import simpledb.file.FileMgr;
 import simpledb.log.LogMgr;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Manages the pinning and unpinning of buffers to blocks.
+ * The pool is split into partitions by block hash;
+ * each partition has its own lock, so pins of unrelated blocks
+ * do not contend, and re-pinning a block that is already pinned
+ * takes no lock at all.
+ */
 public class BufferMgr {
-    private Buffer[] bufferpool;
-    private int numAvailable;
     private static final long MAX_TIME = 10000; // 10 seconds
+    // the fewest buffers a partition may have, so that
+    // a handful of pinned blocks cannot exhaust a partition
+    private static final int MIN_PARTITION_SIZE = 64;
+    private final BufferPartition[] partitions;
+    private final FileMgr fm;
+    private final int numbuffs;
+    private PageCleaner cleaner;
+    private volatile ReadAhead readAhead;
 
     public BufferMgr(FileMgr fm, LogMgr lm, int numbuffs) {
-        bufferpool = new Buffer[numbuffs];
-        numAvailable = numbuffs;
-        for (int i = 0; i < numbuffs; i++) {
-            bufferpool[i] = new Buffer(fm, lm);
-        }
+        this(fm, lm, numbuffs, new ClockPolicy());
     }
 
-    public synchronized int available() {
-        return numAvailable;
+    public BufferMgr(FileMgr fm, LogMgr lm, int numbuffs, ReplacementPolicy policy) {
+        this(fm, lm, numbuffs, 1, n -> policy);
     }
 
-    public synchronized void flushAll(int txnum) {
-        for (Buffer buff : bufferpool) {
-            if (buff.modifyingTx() == txnum) {
-                buff.flush();
+    /**
+     * Creates a buffer manager whose pool is split into partitions.
+     * The number of partitions is reduced if necessary so that
+     * each partition holds at least MIN_PARTITION_SIZE buffers.
+     * @param numbuffs the total number of buffers
+     * @param numpartitions the requested number of partitions
+     * @param policies creates the replacement policy of a partition,
+     *                 given the number of buffers in that partition
+     */
+    public BufferMgr(FileMgr fm, LogMgr lm, int numbuffs, int numpartitions,
+                     IntFunction<ReplacementPolicy> policies) {
+        this.fm = fm;
+        this.numbuffs = numbuffs;
+        int n = Math.max(1, Math.min(numpartitions, numbuffs / MIN_PARTITION_SIZE));
+        partitions = new BufferPartition[n];
+        for (int i = 0; i < n; i++) {
+            int size = numbuffs / n + (i < numbuffs % n ? 1 : 0);
+            Buffer[] buffs = new Buffer[size];
+            for (int j = 0; j < size; j++) {
+                buffs[j] = new Buffer(fm, lm);
             }
+            partitions[i] = new BufferPartition(buffs, policies.apply(size));
+        }
+    }
+
+    public int numBuffers() {
+        return numbuffs;
+    }
+
+    public int available() {
+        int n = 0;
+        for (BufferPartition part : partitions) {
+            n += part.available();
         }
+        return n;
     }
 
-    public synchronized void unpin(Buffer buff) {
-        buff.unpin();
-        if (!buff.isPinned()) {
-            numAvailable++;
-            notifyAll();
+    /**
+     * Writes the buffers modified by the transaction,
+     * and forces the data files to disk.
+     */
+    public void flushAll(int txnum) {
+        for (BufferPartition part : partitions) {
+            part.flushAll(txnum, false);
         }
+        fm.forceAll();
     }
 
-    public synchronized Buffer pin(BlockId blk) {
-        try {
-            long timestamp = System.currentTimeMillis();
-            Buffer buff = tryToPin(blk);
-            while (buff == null && !waitingTooLong(timestamp)) {
-                wait(MAX_TIME);
-                buff = tryToPin(blk);
+    /**
+     * Writes the buffers in which the transaction made changes
+     * without logging them, and forces the data files to disk
+     * if there were any. The other buffers the transaction modified
+     * are left for the page cleaner or replacement to write.
+     */
+    public void flushUnlogged(int txnum) {
+        int n = 0;
+        for (BufferPartition part : partitions) {
+            n += part.flushAll(txnum, true);
+        }
+        if (n > 0) {
+            fm.forceAll();
+        }
+    }
+
+    /**
+     * Returns the dirty page table: each modified page with logged changes,
+     * mapped to the LSN of its oldest change not yet written to disk.
+     * The table is taken one partition at a time, without stopping
+     * transactions, so it is only a fuzzy snapshot.
+     */
+    public Map<BlockId, Long> dirtyPages() {
+        Map<BlockId, Long> dirty = new HashMap<>();
+        for (BufferPartition part : partitions) {
+            part.collectDirtyPages(dirty);
+        }
+        return dirty;
+    }
+
+    /**
+     * Starts a background cleaner that writes modified,
+     * unpinned buffers ahead of their replacement.
+     * @param numThreads the number of writer threads
+     * @param interval the time between scans for dirty buffers, in milliseconds
+     */
+    public synchronized PageCleaner startCleaner(int numThreads, long interval) {
+        if (cleaner == null) {
+            cleaner = new PageCleaner(partitions, fm.blocksize(), numThreads, interval);
+            for (BufferPartition part : partitions) {
+                part.setCleaner(cleaner);
             }
-            if (buff == null)
-                throw new BufferAbortException();
-            return buff;
-        } catch(InterruptedException e) {
-            throw new BufferAbortException();
         }
+        return cleaner;
     }
 
-    private boolean waitingTooLong(long starttime) {
-        return System.currentTimeMillis() - starttime > MAX_TIME;
+    /**
+     * Returns the background cleaner, or null if none was started.
+     */
+    public synchronized PageCleaner cleaner() {
+        return cleaner;
     }
 
-    private Buffer tryToPin(BlockId blk) {
-        Buffer buff = findExistingBuffer(blk);
-        if (buff == null) {
-            buff = chooseUnpinnedBuffer();
-            if (buff == null) {
-                return null;
+    /**
+     * Starts sequential read-ahead.
+     * @param maxWindow the most blocks a file may have prefetched ahead of its scan
+     */
+    public synchronized ReadAhead startReadAhead(int maxWindow) {
+        if (readAhead == null) {
+            readAhead = new ReadAhead(this, fm, numbuffs, maxWindow);
+            for (BufferPartition part : partitions) {
+                part.setReadAhead(readAhead);
             }
-            buff.assignToBlock(blk);
         }
-        if (!buff.isPinned()) {
-            numAvailable--;
+        return readAhead;
+    }
+
+    /**
+     * Returns the read-ahead, or null if none was started.
+     */
+    public ReadAhead readAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Sets whether blocks are read as zero-copy views of memory-mapped
+     * files instead of being copied into the buffers' pages.
+     * A buffer copies its block only when the block is first modified.
+     * Suited to read-mostly data that fits in memory;
+     * read-ahead adds nothing in this mode.
+     */
+    public void setMappedReads(boolean mappedReads) {
+        for (BufferPartition part : partitions) {
+            part.setMappedReads(mappedReads);
         }
-        buff.pin();
-        return buff;
     }
 
-    private Buffer findExistingBuffer(BlockId blk) {
-        for (Buffer buff : bufferpool) {
-            BlockId b = buff.block();
-            if (b != null && b.equals(blk)) {
-                return buff;
+    public void unpin(Buffer buff) {
+        partition(buff.block()).unpin(buff);
+    }
+
+    public Buffer pin(BlockId blk) {
+        return pin(blk, null);
+    }
+
+    /**
+     * Pins the block, taking the buffer from the specified ring
+     * if the block is not resident.
+     * @param ring the ring of a bulk operation, or null
+     */
+    public Buffer pin(BlockId blk, BufferRing ring) {
+        BufferPartition part = partition(blk);
+        Buffer buff = null;
+        while (buff == null) {
+            buff = part.tryRepin(blk);
+            if (buff == null) {
+                buff = part.pin(blk, MAX_TIME, ring);
+            }
+            buff.awaitRead();
+            if (!blk.equals(buff.block())) {
+                // a read-ahead of the block failed
+                part.unpin(buff);
+                buff = null;
             }
         }
-        return null;
+        ReadAhead ra = readAhead;
+        if (ra != null) {
+            ra.accessed(blk);
+        }
+        return buff;
     }
 
-    private Buffer chooseUnpinnedBuffer() {
-        for (Buffer buff : bufferpool)
-            if (!buff.isPinned())
-                return buff;
-        return null;
+    BufferPartition partition(BlockId blk) {
+        int h = blk.hashCode();
+        h ^= (h >>> 16);
+        return partitions[Math.floorMod(h, partitions.length)];
     }
-
 }
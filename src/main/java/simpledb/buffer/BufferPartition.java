@@ -0,0 +1,333 @@
+package simpledb.buffer;
+
+import simpledb.file.BlockId;
+import simpledb.file.Page;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One shard of the buffer pool.
+ * A block is always cached in the partition chosen by its hash,
+ * so each partition can manage its buffers under its own lock,
+ * with its own free list, replacement policy and wait queue.
+ */
+class BufferPartition {
+    private final Buffer[] buffers;
+    private final Map<BlockId, Buffer> bufferMap;
+    private final Deque<Buffer> freeList;
+    private final ReplacementPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition bufferFreed = lock.newCondition();
+    private volatile int numAvailable;
+    private volatile PageCleaner cleaner;
+    private volatile ReadAhead readAhead;
+
+    BufferPartition(Buffer[] buffers, ReplacementPolicy policy) {
+        this.buffers = buffers;
+        this.policy = policy;
+        bufferMap = new ConcurrentHashMap<>(2 * buffers.length);
+        freeList = new ArrayDeque<>(buffers.length);
+        for (Buffer buff : buffers) {
+            freeList.add(buff);
+        }
+        numAvailable = buffers.length;
+    }
+
+    int available() {
+        return numAvailable;
+    }
+
+    void setCleaner(PageCleaner cleaner) {
+        this.cleaner = cleaner;
+    }
+
+    void setReadAhead(ReadAhead readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    void setMappedReads(boolean mappedReads) {
+        for (Buffer buff : buffers) {
+            buff.setMappedReads(mappedReads);
+        }
+    }
+
+    /**
+     * Pins a resident block that is already pinned by another client,
+     * without taking the partition lock.
+     * @return the pinned buffer, or null if the slow path is needed
+     */
+    Buffer tryRepin(BlockId blk) {
+        Buffer buff = bufferMap.get(blk);
+        if (buff == null || !buff.tryRepin()) {
+            return null;
+        }
+        if (!blk.equals(buff.block())) {
+            // the buffer was reassigned between the lookup and the pin
+            unpin(buff);
+            return null;
+        }
+        return buff;
+    }
+
+    /**
+     * Pins the block, waiting up to maxTime milliseconds for a buffer.
+     * @param ring the ring supplying the buffer if the block is not resident,
+     *             or null to use the replacement policy
+     */
+    Buffer pin(BlockId blk, long maxTime, BufferRing ring) {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxTime);
+            Buffer buff = tryToPin(blk, ring);
+            while (buff == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new BufferAbortException();
+                }
+                bufferFreed.awaitNanos(remaining);
+                buff = tryToPin(blk, ring);
+            }
+            if (numAvailable > 0 && lock.hasWaiters(bufferFreed)) {
+                // this thread may have been woken for a buffer it did not take
+                bufferFreed.signal();
+            }
+            return buff;
+        } catch (InterruptedException e) {
+            throw new BufferAbortException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unpin(Buffer buff) {
+        if (buff.unpin()) {
+            lock.lock();
+            try {
+                numAvailable++;
+                bufferFreed.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffers modified by the transaction.
+     * The writes happen outside the partition lock, since each may
+     * first wait for the log; a buffer that is replaced in the meantime
+     * was written by its replacement, and flushing it again is harmless.
+     * @param unloggedOnly if true, only the buffers with unlogged changes are written
+     * @return the number of buffers written
+     */
+    int flushAll(int txnum, boolean unloggedOnly) {
+        List<Buffer> modified = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Buffer buff : buffers) {
+                if (buff.isModifiedBy(txnum) && (!unloggedOnly || buff.hasUnloggedChanges())) {
+                    modified.add(buff);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Buffer buff : modified) {
+            buff.flush();
+        }
+        return modified.size();
+    }
+
+    /**
+     * Adds the partition's modified, unpinned buffers to the list.
+     */
+    void collectDirty(List<Buffer> dirty) {
+        lock.lock();
+        try {
+            for (Buffer buff : buffers) {
+                if (buff.isModified() && !buff.isPinned()) {
+                    dirty.add(buff);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the partition's modified pages that have logged changes
+     * to the map, with the LSN of their oldest unwritten change.
+     */
+    void collectDirtyPages(Map<BlockId, Long> dirty) {
+        lock.lock();
+        try {
+            for (Buffer buff : buffers) {
+                long recLSN = buff.recLSN();
+                BlockId blk = buff.block();
+                if (buff.isModified() && recLSN >= 0 && blk != null) {
+                    dirty.put(blk, recLSN);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffer back to disk if it is still modified and unpinned.
+     * The page is copied while the partition is locked, which keeps
+     * the buffer from being pinned and modified during the copy;
+     * the write itself happens after the lock is released.
+     * @param copy a scratch page owned by the calling thread
+     * @return true if the buffer was written
+     */
+    boolean writeBack(Buffer buff, Page copy) {
+        BlockId blk;
+        long lsn;
+        lock.lock();
+        try {
+            if (buff.isPinned() || !buff.copyForWriteBack(copy)) {
+                return false;
+            }
+            blk = buff.block();
+            lsn = buff.lsn();
+        } finally {
+            lock.unlock();
+        }
+        buff.writeCopy(blk, lsn, copy);
+        return true;
+    }
+
+    /**
+     * Takes a buffer to receive a prefetched block.
+     * The buffer is assigned to the block and returned pinned,
+     * with its page still to be read; anyone else who pins the block
+     * waits until {@link #endPrefetch} is called.
+     * @return the buffer, or null if the block is already resident
+     *         or every buffer is pinned
+     */
+    Buffer beginPrefetch(BlockId blk) {
+        lock.lock();
+        try {
+            if (bufferMap.containsKey(blk)) {
+                return null;
+            }
+            Buffer buff = chooseUnpinnedBuffer();
+            if (buff == null) {
+                return null;
+            }
+            BlockId old = buff.block();
+            if (old != null) {
+                bufferMap.remove(old);
+                noteEviction(buff, old);
+            }
+            buff.beginRead(blk);
+            bufferMap.put(blk, buff);
+            numAvailable--;
+            buff.pin();
+            policy.accessed(buff, true);
+            return buff;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes a prefetch begun by {@link #beginPrefetch},
+     * and releases the buffer's pin.
+     * @param ok true if the page was read; otherwise the buffer
+     *           is left without a block, to be reused by the policy
+     */
+    void endPrefetch(Buffer buff, boolean ok) {
+        lock.lock();
+        try {
+            if (!ok) {
+                bufferMap.remove(buff.block());
+            }
+            buff.endRead(ok);
+            if (buff.unpin()) {
+                numAvailable++;
+                bufferFreed.signal();
+            } else if (buff.clearPrefetched()) {
+                // someone pinned the block while it was being read
+                ReadAhead ra = readAhead;
+                if (ra != null) {
+                    ra.prefetchHit(buff.block());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Buffer tryToPin(BlockId blk, BufferRing ring) {
+        Buffer buff = bufferMap.get(blk);
+        boolean loaded = false;
+        if (buff == null) {
+            buff = (ring != null) ? ring.reuse(this, buffers.length) : null;
+            if (buff == null) {
+                buff = chooseUnpinnedBuffer();
+            }
+            if (buff == null) {
+                return null;
+            }
+            assignToBlock(buff, blk);
+            if (ring != null) {
+                ring.add(this, buff, blk);
+            }
+            loaded = true;
+        } else if (buff.clearPrefetched()) {
+            ReadAhead ra = readAhead;
+            if (ra != null) {
+                ra.prefetchHit(blk);
+            }
+        }
+        if (!buff.isPinned()) {
+            numAvailable--;
+        }
+        buff.pin();
+        policy.accessed(buff, loaded);
+        return buff;
+    }
+
+    private Buffer chooseUnpinnedBuffer() {
+        Buffer buff = freeList.poll();
+        if (buff == null) {
+            buff = policy.chooseUnpinnedBuffer();
+            PageCleaner c = cleaner;
+            if (buff != null && buff.isModified() && c != null) {
+                // this pin must write the page itself; the cleaner is falling behind
+                c.wakeUp();
+            }
+        }
+        return buff;
+    }
+
+    /**
+     * Reassigns the buffer to the specified block,
+     * keeping the block-to-buffer map in step.
+     */
+    private void assignToBlock(Buffer buff, BlockId blk) {
+        BlockId old = buff.block();
+        if (old != null) {
+            bufferMap.remove(old);
+            noteEviction(buff, old);
+        }
+        buff.assignToBlock(blk);
+        bufferMap.put(blk, buff);
+    }
+
+    private void noteEviction(Buffer buff, BlockId old) {
+        ReadAhead ra = readAhead;
+        if (buff.clearPrefetched() && ra != null) {
+            ra.prefetchWasted(old);
+        }
+    }
+}
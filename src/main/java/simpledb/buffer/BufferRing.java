@@ -0,0 +1,79 @@
+package simpledb.buffer;
+
+import simpledb.file.BlockId;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A small, private ring of buffers for a bulk operation,
+ * such as a large sequential scan or the filling of a temporary table.
+ * When a block pinned through the ring is not resident,
+ * the buffer manager reuses the ring's oldest buffer instead of
+ * asking the replacement policy for a victim, so the operation
+ * cycles through a few buffers rather than evicting the pages
+ * that other transactions are using.
+ * A ring belongs to a single scan and is not thread-safe.
+ */
+public class BufferRing {
+    /** The default number of buffers in a ring. */
+    public static final int DEFAULT_SIZE = 16;
+    private final int size;
+    private final Map<BufferPartition, Deque<Entry>> entries = new HashMap<>();
+
+    public BufferRing() {
+        this(DEFAULT_SIZE);
+    }
+
+    public BufferRing(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Returns the ring's oldest buffer in the specified partition,
+     * for reuse, if the ring is full there and the buffer is
+     * unpinned and still holds the block the ring loaded into it.
+     * A buffer that fails those tests has been taken over by
+     * someone else and is dropped from the ring.
+     * @param partsize the number of buffers in the partition
+     * @return the buffer to reuse, or null if a new buffer is needed
+     */
+    Buffer reuse(BufferPartition part, int partsize) {
+        Deque<Entry> ring = entries.get(part);
+        if (ring == null || ring.size() < capacity(partsize)) {
+            return null;
+        }
+        Entry e = ring.poll();
+        if (e.buff.isPinned() || !e.blk.equals(e.buff.block())) {
+            return null;
+        }
+        return e.buff;
+    }
+
+    /**
+     * Adds a buffer that has just been loaded with the
+     * specified block through this ring.
+     */
+    void add(BufferPartition part, Buffer buff, BlockId blk) {
+        entries.computeIfAbsent(part, p -> new ArrayDeque<>()).add(new Entry(buff, blk));
+    }
+
+    /**
+     * The ring never takes more than an eighth of a partition.
+     */
+    private int capacity(int partsize) {
+        return Math.max(1, Math.min(size, partsize / 8));
+    }
+
+    private static class Entry {
+        final Buffer buff;
+        final BlockId blk;
+
+        Entry(Buffer buff, BlockId blk) {
+            this.buff = buff;
+            this.blk = blk;
+        }
+    }
+}
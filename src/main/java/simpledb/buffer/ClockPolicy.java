@@ -0,0 +1,51 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The clock (second-chance) replacement policy.
+ * Each buffer has a reference bit that is set when it is pinned.
+ * The clock hand sweeps the buffers, clearing set bits,
+ * and stops at the first unpinned buffer whose bit is already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    private final List<Buffer> frames = new ArrayList<>();
+    private final Map<Buffer, Integer> positions = new HashMap<>();
+    private final BitSet referenced = new BitSet();
+    private int hand = 0;
+
+    @Override
+    public void accessed(Buffer buff, boolean loaded) {
+        Integer pos = positions.get(buff);
+        if (pos == null) {
+            pos = frames.size();
+            frames.add(buff);
+            positions.put(buff, pos);
+        }
+        referenced.set(pos);
+    }
+
+    @Override
+    public Buffer chooseUnpinnedBuffer() {
+        int n = frames.size();
+        // two sweeps suffice: the first clears every reference bit
+        for (int i = 0; i < 2 * n; i++) {
+            int pos = hand;
+            hand = (hand + 1) % n;
+            Buffer buff = frames.get(pos);
+            if (buff.isPinned()) {
+                continue;
+            }
+            if (referenced.get(pos)) {
+                referenced.clear(pos);
+            } else {
+                return buff;
+            }
+        }
+        return null;
+    }
+}
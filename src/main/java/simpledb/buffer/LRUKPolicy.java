@@ -0,0 +1,94 @@
+package simpledb.buffer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The LRU-K replacement policy.
+ * The victim is the unpinned buffer whose K-th most recent pin
+ * lies furthest in the past. Buffers pinned fewer than K times
+ * are treated as infinitely old, so a block touched once by a scan
+ * is evicted before a block that is referenced repeatedly,
+ * such as a catalog page.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+    private final int k;
+    private final Map<Buffer, History> histories = new HashMap<>();
+    private final TreeSet<History> queue = new TreeSet<>();
+    private long clock = 0;
+    private int nextId = 0;
+
+    public LRUKPolicy(int k) {
+        this.k = k;
+    }
+
+    @Override
+    public void accessed(Buffer buff, boolean loaded) {
+        History h = histories.get(buff);
+        if (h == null) {
+            h = new History(buff, nextId++, k);
+            histories.put(buff, h);
+        } else {
+            queue.remove(h);
+        }
+        if (loaded) {
+            h.reset();
+        }
+        h.reference(++clock);
+        queue.add(h);
+    }
+
+    @Override
+    public Buffer chooseUnpinnedBuffer() {
+        for (History h : queue) {
+            if (!h.buff.isPinned()) {
+                return h.buff;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The last K pin times of a buffer, kept in a circular array.
+     */
+    private static class History implements Comparable<History> {
+        private final Buffer buff;
+        private final int id;
+        private final long[] times;
+        private int count = 0;
+
+        History(Buffer buff, int id, int k) {
+            this.buff = buff;
+            this.id = id;
+            this.times = new long[k];
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        void reference(long time) {
+            times[count % times.length] = time;
+            count++;
+        }
+
+        /** The K-th most recent pin time, or 0 if there have been fewer than K pins. */
+        long kthTime() {
+            return count < times.length ? 0 : times[count % times.length];
+        }
+
+        long lastTime() {
+            return times[(count - 1) % times.length];
+        }
+
+        @Override
+        public int compareTo(History other) {
+            int cmp = Long.compare(kthTime(), other.kthTime());
+            if (cmp == 0) {
+                cmp = Long.compare(lastTime(), other.lastTime());
+            }
+            return cmp != 0 ? cmp : Integer.compare(id, other.id);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package simpledb.buffer;
+
+import simpledb.file.Page;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A background cleaner that writes modified, unpinned buffers
+ * to disk before they are chosen for replacement,
+ * so that a pin rarely has to write another transaction's page.
+ * A scanner thread periodically collects the dirty buffers of every
+ * partition and queues them, oldest LSN first, to a pool of writer threads.
+ * Each write flushes the log up to the page's LSN first,
+ * so the write-ahead rule is preserved.
+ */
+public class PageCleaner {
+    private final BufferPartition[] partitions;
+    private final long interval;
+    private final ExecutorService writers;
+    private final Thread scanner;
+    private final ThreadLocal<Page> scratch;
+    private final Set<Buffer> queued = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong pagesCleaned = new AtomicLong();
+    private volatile double cleanRate = 0.0;
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a cleaner for the specified partitions.
+     * @param numThreads the number of writer threads
+     * @param interval the time between scans, in milliseconds
+     */
+    PageCleaner(BufferPartition[] partitions, int blocksize, int numThreads, long interval) {
+        this.partitions = partitions;
+        this.interval = interval;
+        scratch = ThreadLocal.withInitial(() -> new Page(blocksize));
+        writers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads("page-cleaner"));
+        scanner = daemonThreads("page-cleaner-scan").newThread(this::scanLoop);
+        scanner.start();
+    }
+
+    /**
+     * Returns the number of buffers queued for writing.
+     */
+    public int queueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the total number of pages written by the cleaner.
+     */
+    public long pagesCleaned() {
+        return pagesCleaned.get();
+    }
+
+    /**
+     * Returns the number of pages written per second,
+     * measured over the most recent second.
+     */
+    public double pagesCleanedPerSecond() {
+        return cleanRate;
+    }
+
+    /**
+     * Asks the cleaner to scan now instead of waiting for the next interval.
+     */
+    public void wakeUp() {
+        scanner.interrupt();
+    }
+
+    /**
+     * Stops the cleaner. Buffers already queued are still written.
+     */
+    public void shutdown() {
+        running = false;
+        scanner.interrupt();
+        writers.shutdown();
+    }
+
+    private void scanLoop() {
+        long windowStart = System.nanoTime();
+        long windowCount = pagesCleaned.get();
+        while (running) {
+            scan();
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                // woken early
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                long count = pagesCleaned.get();
+                cleanRate = (count - windowCount) * 1e9 / (now - windowStart);
+                windowStart = now;
+                windowCount = count;
+            }
+        }
+    }
+
+    private void scan() {
+        List<Candidate> candidates = new ArrayList<>();
+        List<Buffer> dirty = new ArrayList<>();
+        for (BufferPartition part : partitions) {
+            dirty.clear();
+            part.collectDirty(dirty);
+            for (Buffer buff : dirty) {
+                candidates.add(new Candidate(buff, part));
+            }
+        }
+        candidates.sort(Comparator.comparingLong(c -> c.lsn));
+        for (Candidate c : candidates) {
+            if (queued.add(c.buff)) {
+                queueDepth.incrementAndGet();
+                try {
+                    writers.execute(() -> write(c));
+                } catch (RejectedExecutionException e) {
+                    return; // shutting down
+                }
+            }
+        }
+    }
+
+    private void write(Candidate c) {
+        try {
+            if (c.part.writeBack(c.buff, scratch.get())) {
+                pagesCleaned.incrementAndGet();
+            }
+        } finally {
+            queued.remove(c.buff);
+            queueDepth.decrementAndGet();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * A dirty buffer, together with its partition and
+     * the LSN it had when it was collected.
+     */
+    private static class Candidate {
+        final Buffer buff;
+        final BufferPartition part;
+        final long lsn;
+
+        Candidate(Buffer buff, BufferPartition part) {
+            this.buff = buff;
+            this.part = part;
+            this.lsn = buff.lsn();
+        }
+    }
+}
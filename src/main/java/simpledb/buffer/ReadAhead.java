@@ -0,0 +1,210 @@
+package simpledb.buffer;
+
+import simpledb.file.BlockId;
+import simpledb.file.FileMgr;
+import simpledb.file.Page;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sequential read-ahead.
+ * The buffer manager reports every pin; once a file has been
+ * pinned block after block, a background thread reads the next
+ * blocks of the file into unpinned buffers, several blocks per read.
+ * Each file has its own prefetch window, which doubles after a
+ * window's worth of prefetched blocks has been used and halves
+ * whenever a prefetched block is replaced without being used.
+ * The number of prefetched but not yet used buffers is capped at
+ * a quarter of the pool, so a scan cannot displace the working set.
+ */
+public class ReadAhead {
+    private static final int MIN_WINDOW = 4;
+    // consecutive blocks that must be pinned before prefetching starts
+    private static final int SEQUENTIAL_RUN = 2;
+    private final BufferMgr bm;
+    private final FileMgr fm;
+    private final int minWindow;
+    private final int maxWindow;
+    private final int maxUnused;
+    private final ExecutorService reader;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger unused = new AtomicInteger();
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+
+    ReadAhead(BufferMgr bm, FileMgr fm, int numbuffs, int maxWindow) {
+        this.bm = bm;
+        this.fm = fm;
+        // in a small pool, the windows shrink with the cap rather than exceed it
+        maxUnused = numbuffs / 4;
+        this.maxWindow = Math.min(maxWindow, maxUnused);
+        minWindow = Math.min(MIN_WINDOW, this.maxWindow);
+        // prefetching is only advisory, so requests are dropped when the reader falls behind
+        reader = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(64), r -> {
+                    Thread t = new Thread(r, "read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Returns the number of blocks read ahead.
+     */
+    public long blocksPrefetched() {
+        return prefetched.get();
+    }
+
+    /**
+     * Returns the number of prefetched blocks that were later pinned.
+     */
+    public long prefetchHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of prefetched blocks that were replaced without being pinned.
+     */
+    public long prefetchesWasted() {
+        return wasted.get();
+    }
+
+    public void shutdown() {
+        reader.shutdown();
+    }
+
+    /**
+     * Records a pin of the specified block, and starts
+     * a prefetch if the block continues a sequential run
+     * that is about to outrun the blocks already prefetched.
+     */
+    void accessed(BlockId blk) {
+        String filename = blk.fileName();
+        Stream s = streams.computeIfAbsent(filename, f -> new Stream(minWindow));
+        int from, to;
+        synchronized (s) {
+            int n = blk.number();
+            if (n == s.last) {
+                return;
+            }
+            if (n == s.last + 1) {
+                s.run++;
+            } else {
+                s.run = 1;
+                s.prefetchedTo = n;
+            }
+            s.last = n;
+            if (s.run < SEQUENTIAL_RUN || s.prefetchedTo - n > s.window / 2) {
+                return;
+            }
+            from = Math.max(s.prefetchedTo + 1, n + 1);
+            to = Math.min(n + s.window, fm.length(filename) - 1);
+            if (from > to) {
+                return;
+            }
+            s.prefetchedTo = to;
+        }
+        reader.execute(() -> prefetch(filename, from, to));
+    }
+
+    void prefetchHit(BlockId blk) {
+        unused.decrementAndGet();
+        hits.incrementAndGet();
+        Stream s = streams.get(blk.fileName());
+        if (s != null) {
+            synchronized (s) {
+                s.hits++;
+                if (s.hits >= s.window) {
+                    s.window = Math.min(maxWindow, 2 * s.window);
+                    s.hits = 0;
+                }
+            }
+        }
+    }
+
+    void prefetchWasted(BlockId blk) {
+        unused.decrementAndGet();
+        wasted.incrementAndGet();
+        Stream s = streams.get(blk.fileName());
+        if (s != null) {
+            synchronized (s) {
+                s.window = Math.max(minWindow, s.window / 2);
+                s.hits = 0;
+            }
+        }
+    }
+
+    private void prefetch(String filename, int from, int to) {
+        List<Buffer> run = new ArrayList<>();
+        int start = from;
+        for (int n = from; n <= to; n++) {
+            if (unused.get() + run.size() >= maxUnused) {
+                break;
+            }
+            BlockId blk = new BlockId(filename, n);
+            Buffer buff = bm.partition(blk).beginPrefetch(blk);
+            if (buff == null) {
+                // resident already, or no free buffer; read what we have so far
+                read(filename, start, run);
+                run.clear();
+                start = n + 1;
+            } else {
+                run.add(buff);
+            }
+        }
+        read(filename, start, run);
+    }
+
+    /**
+     * Reads consecutive blocks into the buffers
+     * reserved for them.
+     */
+    private void read(String filename, int start, List<Buffer> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+        Page[] pages = new Page[run.size()];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = run.get(i).contents();
+        }
+        boolean ok = false;
+        try {
+            fm.read(new BlockId(filename, start), pages);
+            ok = true;
+        } finally {
+            if (ok) {
+                unused.addAndGet(pages.length);
+                prefetched.addAndGet(pages.length);
+            }
+            for (int i = 0; i < pages.length; i++) {
+                BlockId blk = new BlockId(filename, start + i);
+                bm.partition(blk).endPrefetch(run.get(i), ok);
+            }
+        }
+    }
+
+    /**
+     * The access pattern of one file.
+     */
+    private static class Stream {
+        int last = -2;         // the most recently pinned block
+        int run = 0;           // the length of the current sequential run
+        int prefetchedTo = -1; // the last block requested for prefetch
+        int window;            // the number of blocks to prefetch
+        int hits = 0;          // prefetch hits since the window last changed
+
+        Stream(int window) {
+            this.window = window;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package simpledb.buffer;
+
+/**
+ * Decides which unpinned buffer the buffer manager reuses
+ * when a requested block is not already in the pool.
+ * The buffer manager only hands a policy buffers that hold a block;
+ * never-used frames are kept on the manager's own free list.
+ * All methods are called while the buffer manager holds its lock,
+ * so implementations need not be thread-safe.
+ */
+public interface ReplacementPolicy {
+    /**
+     * Records a pin of the specified buffer.
+     * @param buff the pinned buffer, already assigned to the requested block
+     * @param loaded true if the block was just read into the buffer,
+     *               false if it was already resident
+     */
+    void accessed(Buffer buff, boolean loaded);
+
+    /**
+     * Chooses an unpinned buffer to be reassigned to another block.
+     * @return an unpinned buffer, or null if every tracked buffer is pinned
+     */
+    Buffer chooseUnpinnedBuffer();
+}
@@ -0,0 +1,87 @@
+package simpledb.buffer;
+
+import simpledb.file.BlockId;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The 2Q replacement policy.
+ * A newly loaded block enters the FIFO queue A1in.
+ * Blocks evicted from A1in are remembered (without their contents)
+ * in the ghost queue A1out; if such a block is requested again,
+ * it is loaded into the LRU queue Am, which holds the hot blocks.
+ * A burst of once-only references therefore cycles through A1in
+ * without disturbing Am.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+    private final int maxIn, maxOut;
+    private final LinkedHashSet<Buffer> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<Buffer> am = new LinkedHashSet<>();
+    private final LinkedHashSet<BlockId> a1out = new LinkedHashSet<>();
+
+    /**
+     * Creates a 2Q policy for a pool of the specified size,
+     * using the tuning suggested by the policy's authors:
+     * A1in holds a quarter of the pool,
+     * and A1out remembers half as many blocks as the pool holds.
+     */
+    public TwoQPolicy(int numbuffs) {
+        maxIn = Math.max(1, numbuffs / 4);
+        maxOut = Math.max(1, numbuffs / 2);
+    }
+
+    @Override
+    public void accessed(Buffer buff, boolean loaded) {
+        if (loaded) {
+            a1in.remove(buff);
+            am.remove(buff);
+            if (a1out.remove(buff.block())) {
+                am.add(buff);
+            } else {
+                a1in.add(buff);
+            }
+        } else if (am.remove(buff)) {
+            am.add(buff); // move to the most recently used end
+        }
+    }
+
+    @Override
+    public Buffer chooseUnpinnedBuffer() {
+        Buffer buff = null;
+        if (a1in.size() > maxIn) {
+            buff = takeUnpinned(a1in, true);
+        }
+        if (buff == null) {
+            buff = takeUnpinned(am, false);
+        }
+        if (buff == null) {
+            buff = takeUnpinned(a1in, true);
+        }
+        return buff;
+    }
+
+    private Buffer takeUnpinned(LinkedHashSet<Buffer> queue, boolean remember) {
+        Iterator<Buffer> iter = queue.iterator();
+        while (iter.hasNext()) {
+            Buffer buff = iter.next();
+            if (!buff.isPinned()) {
+                iter.remove();
+                if (remember) {
+                    rememberEvicted(buff.block());
+                }
+                return buff;
+            }
+        }
+        return null;
+    }
+
+    private void rememberEvicted(BlockId blk) {
+        a1out.add(blk);
+        if (a1out.size() > maxOut) {
+            Iterator<BlockId> iter = a1out.iterator();
+            iter.next();
+            iter.remove();
+        }
+    }
+}
@@ -2,19 +2,63 @@ package simpledb.file;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+/**
+ * Reads and writes blocks with positional channel I/O,
+ * so reads and writes of different blocks never wait for each other,
+ * whichever file they are in.
+ * Only append takes a lock, and only on its own file,
+ * so that two appenders cannot claim the same block.
+ * Writes are not synchronous; callers that need durability
+ * call {@link #force} or {@link #forceAll}, as the sync policy allows.
+ * Blocks may also be read through read-only memory mappings of their files,
+ * which are mapped in segments and grow as the files do.
+ * <p>
+ * The number of blocks in each file is kept in memory.
+ * Files grow on disk a whole extent at a time, so most appends
+ * only claim a block that has already been written as zeros.
+ * Since an appended block may hold only zeros too, the number of
+ * blocks in use is also written to a length file beside the file
+ * whenever the file is forced, before the file itself, so that
+ * appends cost no I/O and no forced block is lost on a restart.
+ */
 public class FileMgr {
+    // the suffix of the file that holds the length of a file
+    private static final String LENGTH_SUFFIX = ".len";
+    // the size of a memory-mapped segment, in bytes
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
     private final File dbDirectory;
     private final int blocksize;
     private final boolean isNew;
-    private final Map<String, RandomAccessFile> openFiles = new HashMap<>();
+    private final SyncPolicy syncPolicy;
+    private final int blocksPerSegment;
+    private final int blocksPerExtent;
+    private final Map<String, OpenFile> openFiles = new ConcurrentHashMap<>();
 
     public FileMgr(File dbDirectory, int blocksize) {
+        this(dbDirectory, blocksize, SyncPolicy.PER_COMMIT, blocksize);
+    }
+
+    /**
+     * @param syncPolicy when writes are forced to disk
+     * @param extentSize the number of bytes by which a file grows when
+     *                   an append reaches its end; rounded down to whole blocks
+     */
+    public FileMgr(File dbDirectory, int blocksize, SyncPolicy syncPolicy, int extentSize) {
         this.dbDirectory = dbDirectory;
         this.blocksize = blocksize;
+        this.syncPolicy = syncPolicy;
+        blocksPerSegment = Math.max(1, SEGMENT_SIZE / blocksize);
+        blocksPerExtent = Math.max(1, extentSize / blocksize);
         isNew = !dbDirectory.exists();
 
         if (isNew) {
@@ -40,57 +84,417 @@ public class FileMgr {
         return blocksize;
     }
 
-    public synchronized void read(BlockId blk, Page p) {
+    public SyncPolicy syncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Reads the block into the page.
+     * The part of the block past the end of the file reads as zeros.
+     */
+    public void read(BlockId blk, Page p) {
         try {
-            RandomAccessFile f = getFile(blk.fileName());
-            f.seek(blk.number() * blocksize);
-            f.getChannel().read(p.contents());
+            ByteBuffer bb = p.readTarget();
+            if (!readFully(getFile(blk.fileName()).channel, bb, offset(blk.number()))) {
+                zeroRemaining(bb);
+            }
         } catch (IOException e) {
             throw new RuntimeException("cannot read block " + blk, e);
         }
     }
 
-    public synchronized void write(BlockId blk, Page p) {
+    /**
+     * Reads consecutive blocks, starting at the specified block,
+     * into the specified pages.
+     * Pages beyond the end of the file are filled with zeros.
+     */
+    public void read(BlockId first, Page[] pages) {
         try {
-            RandomAccessFile f = getFile(blk.fileName());
-            f.seek(blk.number() * blocksize);
-            f.getChannel().write(p.contents());
+            FileChannel fc = getFile(first.fileName()).channel;
+            boolean atEnd = false;
+            for (int i = 0; i < pages.length; i++) {
+                ByteBuffer bb = pages[i].readTarget();
+                if (atEnd || !readFully(fc, bb, offset(first.number() + i))) {
+                    atEnd = true;
+                    zeroRemaining(bb);
+                }
+            }
         } catch (IOException e) {
-            throw new RuntimeException("cannot write block " + blk, e);
+            throw new RuntimeException("cannot read blocks starting at " + first, e);
         }
     }
 
-    public synchronized BlockId append(String fileName) {
-        int newblknum = length(fileName);
-        BlockId blk = new BlockId(fileName, newblknum);
-        byte[] b = new byte[blocksize];
+    /**
+     * Makes the page a read-only view of the block
+     * in a memory mapping of its file, instead of copying the block.
+     * The page copies the block the first time it is modified,
+     * so writes still go through {@link #write}.
+     * Temporary files are not mapped.
+     * @return false if the block could not be mapped, in which case
+     *         the caller should read it with {@link #read}
+     */
+    public boolean map(BlockId blk, Page p) {
+        OpenFile f = getFile(blk.fileName());
+        if (f.temp) {
+            return false;
+        }
+        int segno = blk.number() / blocksPerSegment;
+        int pos = (blk.number() % blocksPerSegment) * blocksize;
+        ByteBuffer[] segments = f.segments;
+        ByteBuffer seg = segno < segments.length ? segments[segno] : null;
+        if (seg == null || seg.capacity() < pos + blocksize) {
+            seg = mapSegment(blk.fileName(), f, segno, blk.number());
+            if (seg == null) {
+                return false;
+            }
+        }
+        p.map(seg.slice(pos, blocksize));
+        return true;
+    }
+
+    public void write(BlockId blk, Page p) {
         try {
-            RandomAccessFile f = getFile(blk.fileName());
-            f.seek(blk.number() * blocksize);
-            f.write(b);
+            OpenFile f = getFile(blk.fileName());
+            if (blk.number() >= f.numblocks) {
+                // a block past the end is written directly; it is part of the file now
+                synchronized (f) {
+                    if (blk.number() >= f.numblocks) {
+                        f.numblocks = blk.number() + 1;
+                        f.allocated = Math.max(f.allocated, f.numblocks);
+                    }
+                }
+            }
+            writeFully(f.channel, p.view(), offset(blk.number()));
+            f.writes.incrementAndGet();
         } catch (IOException e) {
-            throw new RuntimeException("cannot append block " + blk, e);
+            throw new RuntimeException("cannot write block " + blk, e);
+        }
+    }
+
+    /**
+     * Adds a block to the end of the file.
+     * If the file has no preallocated block left,
+     * it is first extended by a whole extent of zeros.
+     */
+    public BlockId append(String fileName) {
+        return append(fileName, blk -> {});
+    }
+
+    /**
+     * Adds a block to the end of the file, first passing it to the
+     * specified claim while the file's append lock is held.
+     * Since the block is not counted in the file's length until
+     * the claim returns, nobody else can find the block before then.
+     * The claim must not wait for anything another appender may hold.
+     */
+    public BlockId append(String fileName, Consumer<BlockId> claim) {
+        OpenFile f = getFile(fileName);
+        synchronized (f) {
+            BlockId blk = new BlockId(fileName, f.numblocks);
+            claim.accept(blk);
+            if (blk.number() >= f.allocated) {
+                try {
+                    writeFully(f.channel, ByteBuffer.allocate(blocksPerExtent * blocksize),
+                            offset(f.allocated));
+                    f.writes.incrementAndGet();
+                } catch (IOException e) {
+                    throw new RuntimeException("cannot append block " + blk, e);
+                }
+                f.allocated += blocksPerExtent;
+            }
+            f.numblocks = blk.number() + 1;
+            return blk;
         }
-        return blk;
+    }
+
+    /**
+     * Cuts the file down to the specified number of blocks,
+     * and forces it and its new length to disk, as the sync policy allows.
+     * The caller must ensure that nobody is using the blocks removed.
+     */
+    public void truncate(String fileName, int numblocks) {
+        OpenFile f = getFile(fileName);
+        synchronized (f) {
+            if (numblocks >= f.numblocks) {
+                return;
+            }
+            try {
+                f.channel.truncate(offset(numblocks));
+                if (syncPolicy != SyncPolicy.RELAXED) {
+                    f.channel.force(true);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("cannot truncate " + fileName, e);
+            }
+            f.numblocks = numblocks;
+            f.allocated = numblocks;
+            f.segments = new ByteBuffer[0];
+        }
+        force(fileName, f);
     }
 
     public int length(String fileName) {
-        try {
-            RandomAccessFile f = getFile(fileName);
-            return (int) (f.length() / blocksize);
-        } catch (IOException e) {
-            throw new RuntimeException("cannot access " + fileName, e);
+        return getFile(fileName).numblocks;
+    }
+
+    /**
+     * Returns true if the file exists.
+     * Unlike the other methods, this does not create the file.
+     */
+    public boolean exists(String fileName) {
+        return openFiles.containsKey(fileName) || new File(dbDirectory, fileName).exists();
+    }
+
+    /**
+     * Closes and deletes the file.
+     * The caller must ensure that nobody is using the file.
+     */
+    public void delete(String fileName) {
+        close(fileName);
+        new File(dbDirectory, fileName).delete();
+        new File(dbDirectory, fileName + LENGTH_SUFFIX).delete();
+    }
+
+    /**
+     * Closes the file and moves it into the specified directory.
+     * The caller must ensure that nobody is using the file.
+     */
+    public void moveTo(String fileName, File dir) {
+        close(fileName);
+        dir.mkdirs();
+        for (String name : new String[] {fileName, fileName + LENGTH_SUFFIX}) {
+            File f = new File(dbDirectory, name);
+            if (f.exists() && !f.renameTo(new File(dir, name))) {
+                throw new RuntimeException("cannot move " + name + " to " + dir);
+            }
+        }
+    }
+
+    /**
+     * Closes every open file.
+     * The caller must ensure that nobody is using the files.
+     */
+    public void close() {
+        for (String fileName : openFiles.keySet()) {
+            close(fileName);
+        }
+    }
+
+    private void close(String fileName) {
+        OpenFile f = openFiles.remove(fileName);
+        if (f != null) {
+            try {
+                f.channel.close();
+                if (f.lengthChannel != null) {
+                    f.lengthChannel.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("cannot close " + fileName, e);
+            }
         }
     }
 
-    private RandomAccessFile getFile(String fileName) throws IOException {
-        RandomAccessFile f = openFiles.get(fileName);
-        if (f == null) {
-            File dbTable = new File(dbDirectory, fileName);
-            f = new RandomAccessFile(dbTable, "rws");
-            openFiles.put(fileName, f);
+    /**
+     * Forces the file's completed writes to disk.
+     * Concurrent callers share a force: a caller whose writes
+     * were covered by a force that finished while it waited
+     * returns without forcing again.
+     * The file's length is written and forced first if it has changed,
+     * so that no forced block lies past the length found after a restart.
+     * Temporary files, and every file under the relaxed policy, are not forced;
+     * under the relaxed policy the length is still written.
+     */
+    public void force(String fileName) {
+        force(fileName, getFile(fileName));
+    }
+
+    /**
+     * Forces every file that has writes not yet forced.
+     */
+    public void forceAll() {
+        openFiles.forEach(this::force);
+    }
+
+    private void force(String fileName, OpenFile f) {
+        if (f.temp) {
+            return;
+        }
+        boolean sync = syncPolicy != SyncPolicy.RELAXED;
+        long target = f.writes.get();
+        synchronized (f.forceLock) {
+            try {
+                // every block written so far lies within this length
+                int length = f.numblocks;
+                if (length != f.lengthWritten) {
+                    ByteBuffer len = ByteBuffer.allocate(Integer.BYTES);
+                    len.putInt(0, length);
+                    writeFully(f.lengthChannel, len, 0);
+                    if (sync) {
+                        f.lengthChannel.force(false);
+                    }
+                    f.lengthWritten = length;
+                }
+                if (!sync || f.forced >= target) {
+                    return;
+                }
+                long upTo = f.writes.get();
+                f.channel.force(false);
+                f.forced = upTo;
+            } catch (IOException e) {
+                throw new RuntimeException("cannot force " + fileName, e);
+            }
+        }
+    }
+
+    /**
+     * Maps the segment containing the specified block,
+     * or remaps it if the file has grown past the existing mapping.
+     * A segment is mapped only up to the end of the file,
+     * since mapping beyond it would extend the file.
+     * @return the segment, or null if the block is past the end of the file
+     */
+    private ByteBuffer mapSegment(String fileName, OpenFile f, int segno, int blknum) {
+        synchronized (f) {
+            try {
+                if (blknum >= f.numblocks) {
+                    return null;
+                }
+                ByteBuffer[] segments = f.segments;
+                if (segno < segments.length && segments[segno] != null
+                        && segments[segno].capacity() >= (blknum % blocksPerSegment + 1) * blocksize) {
+                    return segments[segno];
+                }
+                // the preallocated blocks are mapped too, so the mapping
+                // need not change until the file grows by another extent
+                int first = segno * blocksPerSegment;
+                int count = Math.min(blocksPerSegment, f.allocated - first);
+                MappedByteBuffer seg = f.channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset(first), (long) count * blocksize);
+                if (segno >= segments.length) {
+                    segments = Arrays.copyOf(segments, segno + 1);
+                } else {
+                    segments = segments.clone();
+                }
+                segments[segno] = seg;
+                f.segments = segments;
+                return seg;
+            } catch (IOException e) {
+                throw new RuntimeException("cannot map " + fileName, e);
+            }
+        }
+    }
+
+    private long offset(int blknum) {
+        return (long) blknum * blocksize;
+    }
+
+    /**
+     * Reads until the buffer is full or the end of the file is reached.
+     * @return false if the end of the file was reached first
+     */
+    private static boolean readFully(FileChannel fc, ByteBuffer bb, long pos) throws IOException {
+        while (bb.hasRemaining()) {
+            if (fc.read(bb, pos + bb.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void zeroRemaining(ByteBuffer bb) {
+        while (bb.hasRemaining()) {
+            bb.put((byte) 0);
+        }
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer bb, long pos) throws IOException {
+        while (bb.hasRemaining()) {
+            fc.write(bb, pos + bb.position());
+        }
+    }
+
+    private OpenFile getFile(String fileName) {
+        return openFiles.computeIfAbsent(fileName, name -> {
+            try {
+                FileChannel fc = open(name);
+                boolean temp = name.startsWith("temp");
+                // temporary files start empty, so their length need not survive
+                FileChannel lc = temp ? null : open(name + LENGTH_SUFFIX);
+                OpenFile f = new OpenFile(fc, lc, temp);
+                f.allocated = (int) (fc.size() / blocksize);
+                // the length file may lag behind blocks written but not forced;
+                // those that are not all zeros are found on disk
+                f.numblocks = usedBlocks(fc, f.allocated);
+                ByteBuffer len = ByteBuffer.allocate(Integer.BYTES);
+                if (lc != null && readFully(lc, len, 0)) {
+                    f.lengthWritten = len.getInt(0);
+                    f.numblocks = Math.max(f.numblocks, f.lengthWritten);
+                }
+                return f;
+            } catch (IOException e) {
+                throw new RuntimeException("cannot open " + name, e);
+            }
+        });
+    }
+
+    private FileChannel open(String name) throws IOException {
+        return FileChannel.open(new File(dbDirectory, name).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Estimates the number of blocks in a file,
+     * excluding the zero blocks preallocated at its end.
+     * Only the last extent can hold such blocks.
+     * A trailing block that was appended but holds only zeros
+     * is dropped with them, which is why the length file is kept.
+     */
+    private int usedBlocks(FileChannel fc, int allocated) throws IOException {
+        int lowest = Math.max(0, allocated - blocksPerExtent);
+        ByteBuffer bb = ByteBuffer.allocate(blocksize);
+        int n = allocated;
+        while (n > lowest) {
+            bb.clear();
+            readFully(fc, bb, offset(n - 1));
+            if (!isZero(bb)) {
+                break;
+            }
+            n--;
+        }
+        return n;
+    }
+
+    private static boolean isZero(ByteBuffer bb) {
+        for (int i = 0; i < bb.capacity(); i++) {
+            if (bb.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An open file. The object itself is the file's append lock.
+     */
+    private static class OpenFile {
+        final FileChannel channel;
+        final FileChannel lengthChannel;            // null for temporary files
+        final boolean temp;
+        final AtomicLong writes = new AtomicLong(); // completed writes
+        final Object forceLock = new Object();
+        long forced = 0;                            // writes covered by the last force
+        int lengthWritten = -1;                     // the length in the length file; guarded by forceLock
+        // mapped segments; replaced, never modified, under the append lock
+        volatile ByteBuffer[] segments = new ByteBuffer[0];
+        volatile int numblocks; // blocks in use
+        int allocated;          // blocks on disk, including preallocated ones; guarded by the append lock
+
+        OpenFile(FileChannel channel, FileChannel lengthChannel, boolean temp) {
+            this.channel = channel;
+            this.lengthChannel = lengthChannel;
+            this.temp = temp;
         }
-        return f;
     }
 
 }
@@ -5,16 +5,21 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
 public class Page {
-    private final ByteBuffer bb;
+    // the page's contents: either its own buffer,
+    // or a read-only slice of a memory-mapped file
+    private ByteBuffer bb;
+    private final ByteBuffer own;
     public static final Charset CHARSET = StandardCharsets.UTF_8;
 
     public Page(int blocksize) {
-        bb = ByteBuffer.allocateDirect(blocksize);
+        own = ByteBuffer.allocateDirect(blocksize);
+        bb = own;
     }
 
     // A constructor for creating data buffers
     public Page(byte[] b) {
-        bb = ByteBuffer.wrap(b);
+        own = ByteBuffer.wrap(b);
+        bb = own;
     }
 
     public int getInt(int offset) {
@@ -22,34 +27,43 @@ public class Page {
     }
 
     public void setInt(int offset, int n) {
-        bb.putInt(offset, n);
+        writable().putInt(offset, n);
+    }
+
+    public long getLong(int offset) {
+        return bb.getLong(offset);
+    }
+
+    public void setLong(int offset, long n) {
+        writable().putLong(offset, n);
     }
 
     public Short getShort(int offset) {
         return bb.getShort(offset);
     }
     public void setShortInt(int offset, Short n) {
-        bb.putShort(n);
+        writable().putShort(n);
     }
     public boolean getBoolean(int offset) {
         return bb.get(offset) == 1;
     }
     public void setBoolean(int offset, boolean b) {
-        bb.put(b ? (byte)0b1 : (byte) 0b0);
+        writable().put(b ? (byte)0b1 : (byte) 0b0);
     }
 
+    // absolute gets and puts, so that threads copying into
+    // different parts of a page do not disturb each other
     public byte[] getBytes(int offset) {
-        bb.position(offset);
-        int length = bb.getInt();
+        int length = bb.getInt(offset);
         byte[] b = new byte[length];
-        bb.get(b);
+        bb.get(offset + Integer.BYTES, b);
         return b;
     }
 
     public void setBytes(int offset, byte[] b) {
-        bb.position(offset);
-        bb.putInt(b.length);
-        bb.put(b);
+        ByteBuffer buf = writable();
+        buf.putInt(offset, b.length);
+        buf.put(offset + Integer.BYTES, b);
     }
 
     public String getString(int offset) {
@@ -72,4 +86,44 @@ public class Page {
         bb.position(0);
         return bb;
     }
+
+    /**
+     * Returns a view of the whole page with its own position,
+     * so that file I/O does not disturb concurrent readers of the page.
+     */
+    ByteBuffer view() {
+        ByteBuffer view = bb.duplicate();
+        view.clear();
+        return view;
+    }
+
+    /**
+     * Returns a view of the page's own buffer, into which a block
+     * is about to be read; any mapping is dropped without copying.
+     */
+    ByteBuffer readTarget() {
+        bb = own;
+        return view();
+    }
+
+    /**
+     * Makes the page a zero-copy view of a block of a mapped file.
+     * The page reads from the mapping until it is first modified.
+     */
+    void map(ByteBuffer slice) {
+        bb = slice;
+    }
+
+    /**
+     * Copies a mapped block into the page's own buffer
+     * before the page is modified.
+     */
+    private ByteBuffer writable() {
+        if (bb != own) {
+            own.clear();
+            own.put(view());
+            bb = own;
+        }
+        return bb;
+    }
 }
@@ -0,0 +1,24 @@
+package simpledb.file;
+
+/**
+ * How the file manager makes writes durable.
+ * Data and log files are written without synchronous I/O;
+ * durability comes from explicit forces at commit, rollback and
+ * write-ahead log flushes. Temporary files are never forced.
+ */
+public enum SyncPolicy {
+    /** Every commit forces the files it needs before returning. */
+    PER_COMMIT,
+    /**
+     * Log flushes are handed to a log writer thread, which gathers
+     * the commits arriving within a window and makes them all durable
+     * with one write and force of the log.
+     */
+    GROUP,
+    /**
+     * Nothing is forced; the operating system writes files back when it chooses.
+     * Committed work survives a crash of the database process,
+     * but not necessarily a crash of the machine.
+     */
+    RELAXED
+}
@@ -44,6 +44,21 @@ public class BTreeDir {
         return childBlk.number();
     }
 
+    /**
+     * Returns true if the children of this page are leaves.
+     */
+    public boolean isLeafLevel() {
+        return contents.getFlag() == 0;
+    }
+
+    /**
+     * Returns the block number of the child
+     * whose subtree holds the specified search key.
+     */
+    public int childFor(Constant searchKey) {
+        return findChildBlock(searchKey).number();
+    }
+
     /**
      * Creates a new root block for the B-tree.
      * The new root will have two children:
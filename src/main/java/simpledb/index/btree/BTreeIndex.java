@@ -8,14 +8,19 @@ import simpledb.record.RID;
 import simpledb.record.Schema;
 import simpledb.tx.Transaction;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static java.sql.Types.INTEGER;
 
 public class BTreeIndex implements Index {
     private Transaction tx;
     private Layout dirLayout, leafLayout;
     private String leafTbl;
-    private BTreeLeaf leaf = null;
     private BlockId rootBlk;
+    // the dataRIDs having the search key, and the position among them
+    private List<RID> rids = new ArrayList<>();
+    private int current = -1;
 
     /**
      * Opens a B-tree index for the specified index.
@@ -27,10 +32,15 @@ public class BTreeIndex implements Index {
         this.tx = tx;
         leafTbl = idxName + "leaf";
         this.leafLayout = leafLayout;
-        if (tx.size(leafTbl) == 0) {
-            BlockId blk = tx.append(leafTbl);
-            BTPage node = new BTPage(tx, blk, leafLayout);
-            node.format(blk, -1);
+        // whoever locks the empty file first creates the index;
+        // a read-only transaction finds an empty index instead
+        if (tx.size(leafTbl) == 0 && !tx.isReadOnly()) {
+            tx.xLockFile(leafTbl);
+            if (tx.size(leafTbl) == 0) {
+                BlockId blk = tx.append(leafTbl);
+                BTPage node = new BTPage(tx, blk, leafLayout);
+                node.format(blk, -1);
+            }
         }
 
         Schema dirSch = new Schema();
@@ -39,35 +49,45 @@ public class BTreeIndex implements Index {
         String dirTbl = idxName + "dir";
         dirLayout = new Layout(dirSch);
         rootBlk = new BlockId(dirTbl, 0);
-        if (tx.size(dirTbl) == 0) {
-            // create new root block
-            tx.append(dirTbl);
-            BTPage node = new BTPage(tx, rootBlk, dirLayout);
-            node.format(rootBlk, 0);
-            // insert initial directory entry
-            int fieldType = dirSch.type("dataVal");
-            Constant minVal = (fieldType == INTEGER) ? new Constant(Integer.MIN_VALUE) : new Constant("");
-            node.insertDir(0, minVal, 0);
-            node.close();
+        if (tx.size(dirTbl) == 0 && !tx.isReadOnly()) {
+            tx.xLockFile(dirTbl);
+            if (tx.size(dirTbl) == 0) {
+                // create new root block
+                tx.append(dirTbl);
+                BTPage node = new BTPage(tx, rootBlk, dirLayout);
+                node.format(rootBlk, 0);
+                // insert initial directory entry
+                int fieldType = dirSch.type("dataVal");
+                Constant minVal = (fieldType == INTEGER) ? new Constant(Integer.MIN_VALUE) : new Constant("");
+                node.insertDir(0, minVal, 0);
+                node.close();
+            }
         }
     }
 
     /**
-     * Traverse the directory to find the leaf block corresponding
-     * to the specified search key.
-     * The method then opens a page for that leaf block, and
-     * positions the page before the first record (if any)
-     * having that search key.
-     * The leaf page is kept open, for use by the methods next
-     * and getDataRid
+     * Finds the index records having the specified search key.
+     * The key is locked in shared mode until the transaction ends,
+     * so no record having it can be inserted or deleted meanwhile;
+     * with the key locked, the directory and leaf pages need to be
+     * locked only while they are read, which lets other transactions
+     * change the rest of the leaf.
+     * The dataRIDs of the records are read at once, and returned
+     * by the methods next and getDataRid.
      */
     public void beforeFirst(Constant searchKey) {
         close();
-        BTreeDir root = new BTreeDir(tx, rootBlk, dirLayout);
-        int blkNum = root.search(searchKey);
-        root.close();
-        BlockId leafBlk = new BlockId(leafTbl, blkNum);
-        leaf = new BTreeLeaf(tx, leafBlk, leafLayout, searchKey);
+        if (tx.size(rootBlk.fileName()) == 0)
+            return;
+        tx.sLockKey(leafTbl, searchKey);
+        BlockId leafBlk = findLeaf(searchKey, false);
+        while (leafBlk == null)
+            leafBlk = findLeaf(searchKey, false);
+        BTreeLeaf leaf = new BTreeLeaf(tx, leafBlk, leafLayout, searchKey);
+        while (leaf.next())
+            rids.add(leaf.getDataRid());
+        leaf.close();
+        tx.unlockBriefly(leafBlk);
     }
 
     /**
@@ -76,20 +96,22 @@ public class BTreeIndex implements Index {
      * Returns false if there are no more such leaf records.
      */
     public boolean next() {
-        return leaf.next();
+        current++;
+        return current < rids.size();
     }
 
     /**
      * Returns the dataRID value from the curren leaf record.
      */
     public RID getDataRid() {
-        return leaf.getDataRid();
+        return rids.get(current);
     }
 
     /**
      * Insert the specified record into the index.
-     * The method first traverses the directory to find
-     * the appropriate leaf page; then it inserts
+     * The method first locks the key exclusively and
+     * traverses the directory to find the appropriate leaf page,
+     * which it locks exclusively; then it inserts
      * the record into the leaf.
      * If the insertion causes the leaf to split, then
      * the method calls insert on the root,
@@ -97,7 +119,8 @@ public class BTreeIndex implements Index {
      * If the root node splits, then makeNewRoot is called.
      */
     public void insert(Constant dataVal, RID dataRid) {
-        beforeFirst(dataVal);
+        close();
+        BTreeLeaf leaf = openForUpdate(dataVal);
         DirEntry e = leaf.insert(dataRid);
         leaf.close();
         if (e == null)
@@ -111,23 +134,69 @@ public class BTreeIndex implements Index {
 
     /**
      * Delete the specified index record.
-     * The method first traverses the directory to find
-     * the leaf page containing that record; then it
+     * The method first locks the key and the leaf page
+     * containing that record exclusively; then it
      * deletes the record from the page
      */
     public void delete(Constant dataVal, RID dataRid) {
-        beforeFirst(dataVal);
+        close();
+        BTreeLeaf leaf = openForUpdate(dataVal);
         leaf.delete(dataRid);
         leaf.close();
     }
 
     /**
-     * Close the index by closing its open leaf page,
-     * if necessary.
+     * Close the index by forgetting the dataRIDs it found.
      */
     public void close() {
-        if (leaf != null)
-            leaf.close();
+        rids.clear();
+        current = -1;
+    }
+
+    private BTreeLeaf openForUpdate(Constant dataVal) {
+        tx.xLockKey(leafTbl, dataVal);
+        BlockId leafBlk = findLeaf(dataVal, true);
+        while (leafBlk == null)
+            leafBlk = findLeaf(dataVal, true);
+        return new BTreeLeaf(tx, leafBlk, leafLayout, dataVal);
+    }
+
+    /**
+     * Traverses the directory to the leaf block for the search key.
+     * Each directory page is locked briefly, and released once the
+     * page below it is locked, so that no page is read while
+     * another transaction is changing it. The leaf is left locked:
+     * briefly for a reader, and exclusively for a writer.
+     * A page that another transaction holds is waited for
+     * with no directory page locked, since that transaction may
+     * need to change a page above; the directory may have changed
+     * by then, so null is returned and the traversal starts again.
+     */
+    private BlockId findLeaf(Constant searchKey, boolean exclusive) {
+        BlockId blk = rootBlk;
+        tx.sLockBriefly(blk);
+        while (true) {
+            BTreeDir dir = new BTreeDir(tx, blk, dirLayout);
+            boolean leafLevel = dir.isLeafLevel();
+            int childNum = dir.childFor(searchKey);
+            dir.close();
+            BlockId child = new BlockId(leafLevel ? leafTbl : blk.fileName(), childNum);
+            boolean forUpdate = leafLevel && exclusive;
+            boolean locked = forUpdate ? tx.tryXLock(child) : tx.trySLockBriefly(child);
+            tx.unlockBriefly(blk);
+            if (!locked) {
+                if (forUpdate) {
+                    tx.xLock(child);
+                } else {
+                    tx.sLockBriefly(child);
+                    tx.unlockBriefly(child);
+                }
+                return null;
+            }
+            if (leafLevel)
+                return child;
+            blk = child;
+        }
     }
 
     /**
@@ -12,6 +12,7 @@ public class EmbeddedConnection extends ConnectionAdapter {
     private SimpleDB db;
     private Transaction currentTx;
     private Planner planner;
+    private boolean readOnly = false;
 
     public EmbeddedConnection(SimpleDB db) {
         this.db = db;
@@ -32,16 +33,40 @@ public class EmbeddedConnection extends ConnectionAdapter {
     @Override
     public void commit() throws SQLException {
         currentTx.commit();
-        currentTx = db.newTx();
+        currentTx = newTx();
     }
 
     @Override
     public void rollback() throws SQLException {
         currentTx.rollback();
-        currentTx = db.newTx();
+        currentTx = newTx();
+    }
+
+    /**
+     * Sets whether the connection's transactions are read-only.
+     * A read-only transaction writes nothing to the log and takes no
+     * exclusive locks, so its queries and commits cost no I/O.
+     * The current transaction is committed, and the next
+     * one is started in the new mode.
+     */
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        if (readOnly != this.readOnly) {
+            this.readOnly = readOnly;
+            commit();
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return readOnly;
     }
 
     public Transaction getTransaction() {
         return currentTx;
     }
+
+    private Transaction newTx() {
+        return readOnly ? db.newReadOnlyTx() : db.newTx();
+    }
 }
@@ -21,6 +21,24 @@ public class NetworkConnection extends ConnectionAdapter {
         }
     }
 
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        try {
+            rConn.setReadOnly(readOnly);
+        } catch (Exception e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        try {
+            return rConn.isReadOnly();
+        } catch (Exception e) {
+            throw new SQLException(e);
+        }
+    }
+
     @Override
     public void close() throws SQLException {
         try {
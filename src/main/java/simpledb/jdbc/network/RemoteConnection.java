@@ -6,4 +6,6 @@ import java.rmi.RemoteException;
 public interface RemoteConnection extends Remote {
     public RemoteStatement createStatement() throws RemoteException;
     public void close() throws RemoteException;
+    public void setReadOnly(boolean readOnly) throws RemoteException;
+    public boolean isReadOnly() throws RemoteException;
 }
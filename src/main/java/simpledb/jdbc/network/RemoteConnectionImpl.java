@@ -11,6 +11,7 @@ public class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteC
     private SimpleDB db;
     private Transaction currentTx;
     private Planner planner;
+    private boolean readOnly = false;
     public RemoteConnectionImpl(SimpleDB db) throws RemoteException {
         this.db = db;
         currentTx = db.newTx();
@@ -27,17 +28,38 @@ public class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteC
         currentTx.commit();
     }
 
+    /**
+     * Sets whether the connection's transactions are read-only,
+     * committing the current transaction.
+     */
+    @Override
+    public void setReadOnly(boolean readOnly) throws RemoteException {
+        if (readOnly != this.readOnly) {
+            this.readOnly = readOnly;
+            commit();
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() throws RemoteException {
+        return readOnly;
+    }
+
     Transaction getTransaction() {
         return currentTx;
     }
 
     void commit() {
         currentTx.commit();
-        currentTx = db.newTx();
+        currentTx = newTx();
     }
 
     void rollback() {
         currentTx.rollback();
-        currentTx = db.newTx();
+        currentTx = newTx();
+    }
+
+    private Transaction newTx() {
+        return readOnly ? db.newReadOnlyTx() : db.newTx();
     }
 }
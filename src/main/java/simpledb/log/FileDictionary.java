@@ -0,0 +1,95 @@
+package simpledb.log;
+
+import simpledb.file.BlockId;
+import simpledb.file.FileMgr;
+import simpledb.file.Page;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns numeric ids to the names of the files that log records refer to,
+ * so that a record stores a small id instead of the full name.
+ * Ids are assigned in order and never reused; the names are kept
+ * in the file logfile.names, each block holding a count followed by names.
+ * A new name is written and forced before its id is returned,
+ * so a log record can never reach the disk ahead of its name.
+ */
+class FileDictionary {
+    private final FileMgr fm;
+    private final String filename;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    // guarded by this
+    private final List<String> names = new ArrayList<>();
+    private Page page;
+    private BlockId blk;
+    private int count;
+    private int pos;
+
+    FileDictionary(FileMgr fm, String filename) {
+        this.fm = fm;
+        this.filename = filename;
+        page = new Page(fm.blocksize());
+        int n = fm.exists(filename) ? fm.length(filename) : 0;
+        for (int i = 0; i < n; i++) {
+            blk = new BlockId(filename, i);
+            fm.read(blk, page);
+            count = page.getInt(0);
+            pos = Integer.BYTES;
+            for (int j = 0; j < count; j++) {
+                String name = page.getString(pos);
+                pos += Page.maxLength(name.length());
+                ids.put(name, names.size());
+                names.add(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the file name, assigning one if necessary.
+     */
+    int id(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            int size = Page.maxLength(name.length());
+            if (size > fm.blocksize() - Integer.BYTES) {
+                throw new RuntimeException("cannot log file name " + name + ": too long");
+            }
+            if (blk == null || pos + size > fm.blocksize()) {
+                blk = fm.append(filename);
+                page = new Page(fm.blocksize());
+                count = 0;
+                pos = Integer.BYTES;
+            }
+            page.setString(pos, name);
+            pos += size;
+            count++;
+            page.setInt(0, count);
+            fm.write(blk, page);
+            fm.force(filename);
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+            return id;
+        }
+    }
+
+    /**
+     * Returns the file name with the specified id.
+     */
+    synchronized String name(int id) {
+        if (id < 0 || id >= names.size()) {
+            throw new RuntimeException("cannot find file name " + id + " in the log dictionary");
+        }
+        return names.get(id);
+    }
+}
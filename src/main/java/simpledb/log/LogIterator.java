@@ -1,45 +1,82 @@
 package simpledb.log;
 
-import simpledb.file.BlockId;
 import simpledb.file.FileMgr;
 import simpledb.file.Page;
 
 import java.util.Iterator;
 
+/**
+ * Iterates over the log records, from the most recent backwards.
+ * The iteration stops at the oldest segment still on disk,
+ * or at a page whose newest records are damaged, which ends the log:
+ * neither its records nor older ones are returned.
+ */
 public class LogIterator implements Iterator<byte[]> {
     private FileMgr fm;
-    private BlockId blk;
+    private LogSegments segments;
+    private int blknum;
     private Page p;
     private int currentpos;
     private int boundary;
+    private boolean damaged;
+    private long lsn = -1;
 
-    public LogIterator(FileMgr fm, BlockId blk) {
+    LogIterator(FileMgr fm, LogSegments segments, int blknum) {
         this.fm = fm;
-        this.blk = blk;
+        this.segments = segments;
+        this.blknum = blknum;
         byte[] b = new byte[fm.blocksize()];
         p = new Page(b);
-        moveToBlock(blk);
+        moveToBlock(blknum);
+        skipFinishedPages();
     }
 
     @Override
     public boolean hasNext() {
-        return currentpos < fm.blocksize() || blk.number() > 0;
+        return currentpos < fm.blocksize();
     }
 
     @Override
     public byte[] next() {
-        if (currentpos == fm.blocksize()) {
-            blk = new BlockId(blk.fileName(), blk.number() -1);
-            moveToBlock(blk);
-        }
-        byte[] rec = p.getBytes(currentpos);
-        currentpos += Integer.BYTES + rec.length;
+        int blocksize = fm.blocksize();
+        lsn = (long) blknum * blocksize + (blocksize - currentpos);
+        // the records from the page's boundary on were checked when it was read
+        byte[] rec = LogMgr.recordAt(p, currentpos, blocksize);
+        currentpos += LogMgr.RECORD_OVERHEAD + rec.length;
+        skipFinishedPages();
         return rec;
     }
 
-    private void moveToBlock(BlockId blk) {
-        fm.read(blk, p);
-        boundary = p.getInt(0);
+    /**
+     * Returns the LSN of the record most recently returned by {@link #next}.
+     */
+    public long lsn() {
+        return lsn;
+    }
+
+    /**
+     * Moves back past the pages that have no records left,
+     * so that hasNext can tell whether a record remains.
+     */
+    private void skipFinishedPages() {
+        while (currentpos == fm.blocksize() && !damaged && blknum > segments.firstBlock()) {
+            blknum--;
+            moveToBlock(blknum);
+        }
+    }
+
+    /**
+     * Reads the block, checking its records with the same
+     * current and previous boundaries as the log manager.
+     */
+    private void moveToBlock(int blknum) {
+        fm.read(segments.block(blknum), p);
+        int blocksize = fm.blocksize();
+        boundary = LogMgr.intactBoundary(p, blocksize);
+        if (boundary != p.getInt(0)) {
+            damaged = true;
+            boundary = blocksize;
+        }
         currentpos = boundary;
     }
 }
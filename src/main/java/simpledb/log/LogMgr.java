@@ -4,81 +4,516 @@ import simpledb.file.BlockId;
 import simpledb.file.FileMgr;
 import simpledb.file.Page;
 
-import java.util.Iterator;
+import java.io.File;
+import java.util.zip.CRC32C;
 
+/**
+ * Appends records to the log.
+ * The tail of the log is held in a ring of pages.
+ * An appender reserves space for its record under a short lock,
+ * copies the record into the page without the lock,
+ * and then publishes it in LSN order, so that concurrent
+ * appenders only serialize on the reservation.
+ * A page that fills is sealed and the next page of the ring is used;
+ * sealed pages are written by whoever next flushes the log,
+ * by the log writer if one is running, or, if the ring is full,
+ * by the appender that needs a page.
+ * <p>
+ * An LSN is a byte offset into the log:
+ * the record that starts at position recpos of log block n
+ * has the LSN n * blocksize + (blocksize - recpos).
+ * Since records fill a page from its end, LSNs increase in log order,
+ * and they carry over restarts because they are derived from the file.
+ * <p>
+ * The log is stored in segment files (see {@link LogSegments});
+ * the segments before a given LSN can be truncated or archived.
+ */
 public class LogMgr {
+    public static final int DEFAULT_PAGES = 8;
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int SPINS = 100;
+    // a page begins with the boundary of its records, and the boundary
+    // as of the page's previous write, which is used if the page was torn
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+    // a record is stored as its length, its bytes and their checksum
+    static final int RECORD_OVERHEAD = 2 * Integer.BYTES;
     private final FileMgr fm;
-    private final String logfile;
-    private Page logpage;
-    private BlockId currentblk;
-    private int lastSavedLSN = 0;
-    private int latestLSN = 0;
+    private final LogSegments segments;
+    private final Slot[] ring;
+    private final Object writeLock = new Object();
+    // guarded by this
+    private int head;   // the slot being appended to
+    private int tail;   // the oldest slot not yet written and released
+    private long latestLSN;
+    private volatile long publishedLSN;  // every record up to here has been copied
+    private volatile long lastSavedLSN;  // every record up to here has been written
+    private volatile long flushedLSN;    // every record up to here has been forced
+    private final Object flushed = new Object();
+    private volatile LogWriter writer;
+    private final FileDictionary dictionary;
 
     public LogMgr(FileMgr fm, String logfile) {
+        this(fm, logfile, DEFAULT_PAGES, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param numpages the number of pages in the log's ring; at least 2
+     * @param segmentSize the size of a log segment file, in bytes
+     */
+    public LogMgr(FileMgr fm, String logfile, int numpages, int segmentSize) {
         this.fm = fm;
-        // ログファイルの名称は単一
-        this.logfile = logfile;
-        // FileMgr のブロックサイズに準拠
-        byte[] b = new byte[fm.blocksize()];
-        logpage = new Page(b);
-        int logsize = fm.length(logfile);
+        // ログは logfile.0, logfile.1, ... のセグメントに分かれる
+        segments = new LogSegments(fm, logfile, segmentSize);
+        dictionary = new FileDictionary(fm, logfile + ".names");
+        ring = new Slot[Math.max(2, numpages)];
+        for (int i = 0; i < ring.length; i++) {
+            // FileMgr のブロックサイズに準拠
+            ring[i] = new Slot(new Page(new byte[fm.blocksize()]));
+        }
+        Slot s = ring[0];
+        int logsize = segments.length();
         // すでにログが記録されているかどうか
         if (logsize == 0) {
             // 記録されていなければ新しい Block を追加
-            currentblk = appendNewBlock();
+            startPage(s);
         } else {
             // 記録されていれば、最後のブロックを読み取り
-            currentblk = new BlockId(logfile, logsize - 1);
-            fm.read(currentblk, logpage);
+            s.blknum = lastPage(logsize, s.page);
+            s.blk = segments.block(s.blknum);
+            fm.read(s.blk, s.page);
+            s.boundary = intactBoundary(s.page, fm.blocksize());
+            s.published = s.boundary;
+            s.written = s.boundary;
         }
+        // 既存のログの末尾から LSN を復元する
+        latestLSN = lsn(s.blknum, s.boundary);
+        publishedLSN = latestLSN;
+        lastSavedLSN = latestLSN;
+        flushedLSN = latestLSN;
     }
 
-    public void flush(int lsn) {
-        // flush 対象の LSN が最後に保存された LSN 以上である必要あり
-        if (lsn >= lastSavedLSN) {
-            flush();
+    /**
+     * Starts a log writer thread, which makes concurrent
+     * flushes durable together (group commit).
+     * @param window how long the writer waits for more flushes, in microseconds
+     */
+    public synchronized LogWriter startWriter(long window) {
+        if (writer == null) {
+            writer = new LogWriter(this, window);
         }
+        return writer;
     }
 
-    public Iterator<byte[]> iterator() {
-        flush();
-        return new LogIterator(fm, currentblk);
+    /**
+     * Returns the log writer, or null if none was started.
+     */
+    public LogWriter writer() {
+        return writer;
     }
 
-    public synchronized int append(byte[] logrec) {
-        // Page の先頭に記録されている境界値を取得
-        int boundary = logpage.getInt(0);
-        // ログレコードのサイズ取得
-        int recsize = logrec.length;
-        // 書き込み対象のサイズ計算(ログレコード + Int のバイト数)
-        int bytesneeded = recsize + Integer.BYTES;
-        // Page の残りサイズが書き込み対象よりも多いかどうかの判定
-        if (boundary - bytesneeded < Integer.BYTES) {
-            // 足りない場合は一旦 flush してサイズを確保
-            flush();
-            currentblk = appendNewBlock();
-            boundary = logpage.getInt(0);
+    /**
+     * Writes the log to disk up to the specified LSN,
+     * and forces it there.
+     * If a log writer is running, the flush is left to it.
+     */
+    public void flush(long lsn) {
+        LogWriter w = writer;
+        if (w != null) {
+            w.flush(lsn);
+            return;
+        }
+        if (lsn <= flushedLSN) {
+            return;
         }
-        int recpos = boundary - bytesneeded;
-        logpage.setBytes(recpos, logrec);
-        logpage.setInt(0, recpos);
-        latestLSN += 1;
+        long written = write(lsn);
+        // force は lock の外で行い、並行する commit の force をまとめる
+        segments.force();
+        setFlushed(written);
+    }
+
+    /**
+     * Returns the size of the largest record that fits in a log page.
+     */
+    public int maxRecordSize() {
+        // ページ先頭のヘッダと、レコードの長さとチェックサムの分
+        return fm.blocksize() - HEADER_SIZE - RECORD_OVERHEAD;
+    }
+
+    /**
+     * Returns the LSN of the last completed checkpoint,
+     * or -1 if there has been none.
+     */
+    public long checkpointLSN() {
+        return segments.checkpointLSN();
+    }
+
+    /**
+     * Records the LSN of a completed checkpoint, so that recovery
+     * can find it without scanning the log.
+     */
+    public void setCheckpointLSN(long lsn) {
+        segments.setCheckpointLSN(lsn);
+    }
+
+    /**
+     * Returns the LSN at which the oldest log segment on disk begins.
+     * Records before it have been truncated or archived.
+     */
+    public long firstLSN() {
+        return (long) segments.firstBlock() * fm.blocksize();
+    }
+
+    /**
+     * Deletes the log segments that lie entirely before the specified LSN,
+     * such as the segments before the last completed checkpoint.
+     * Segments that are not yet durable are kept.
+     * The caller must ensure that no iterator will need the deleted records.
+     * @return the number of segments deleted
+     */
+    public int truncate(long lsn) {
+        return segments.removeBefore(blockOf(Math.min(lsn, flushedLSN)), null);
+    }
+
+    /**
+     * Moves the log segments that lie entirely before the specified LSN
+     * into the archive directory, under the same conditions as {@link #truncate}.
+     * @return the number of segments archived
+     */
+    public int archive(long lsn, File archiveDir) {
+        return segments.removeBefore(blockOf(Math.min(lsn, flushedLSN)), archiveDir);
+    }
+
+    /**
+     * Returns the LSN up to which the log is durable:
+     * every record whose LSN is at most this value
+     * has been written and forced, as the sync policy allows.
+     */
+    public long flushedLSN() {
+        return flushedLSN;
+    }
+
+    /**
+     * Waits until some other flush makes the log durable
+     * up to the specified LSN, without starting a flush.
+     */
+    public void waitForFlush(long lsn) throws InterruptedException {
+        synchronized (flushed) {
+            while (flushedLSN < lsn) {
+                flushed.wait();
+            }
+        }
+    }
+
+    /**
+     * Returns the LSN of the most recently appended record.
+     */
+    public synchronized long latestLSN() {
         return latestLSN;
     }
 
-    private BlockId appendNewBlock() {
-        // 新しい BLock を追加
-        BlockId blk = fm.append(logfile);
-        // Page の先頭に書き込み可能なサイズ(初期値は Block サイズ)を記録
-        logpage.setInt(0, fm.blocksize());
-        // ファイルにも書き出し <- logpage ってゴミデータ残っちゃったりしてない...?
-        fm.write(blk, logpage);
-        return blk;
+    /**
+     * Returns the id under which log records refer to the specified file.
+     */
+    public int fileId(String filename) {
+        return dictionary.id(filename);
     }
 
-    private void flush() {
-        fm.write(currentblk, logpage);
-        lastSavedLSN = latestLSN;
+    /**
+     * Returns the name of the file with the specified id.
+     */
+    public String fileName(int id) {
+        return dictionary.name(id);
     }
 
+    /**
+     * Returns the record with the specified LSN.
+     * A record still in the ring is read from memory,
+     * and an older one from its block of the log.
+     */
+    public byte[] read(long lsn) {
+        int blocksize = fm.blocksize();
+        int blknum = blockOf(lsn);
+        int recpos = blocksize - (int) (lsn % blocksize);
+        synchronized (this) {
+            if (lsn > latestLSN) {
+                throw new RuntimeException("cannot read log record " + lsn + ": it is past the end of the log");
+            }
+        }
+        awaitPublished(lsn);
+        byte[] rec = null;
+        synchronized (this) {
+            // tail から head までのページはまだ再利用されない
+            for (int i = tail; ; i = (i + 1) % ring.length) {
+                Slot s = ring[i];
+                if (s.blknum == blknum) {
+                    rec = recordAt(s.page, recpos, blocksize);
+                    break;
+                }
+                if (i == head) {
+                    break;
+                }
+            }
+        }
+        if (rec == null) {
+            if (blknum < segments.firstBlock()) {
+                throw new RuntimeException("cannot read log record " + lsn + ": its segment was removed");
+            }
+            Page p = new Page(blocksize);
+            fm.read(segments.block(blknum), p);
+            rec = recordAt(p, recpos, blocksize);
+        }
+        if (rec == null) {
+            throw new RuntimeException("cannot read log record " + lsn + ": it is damaged");
+        }
+        return rec;
+    }
+
+    public LogIterator iterator() {
+        int last;
+        synchronized (this) {
+            last = ring[head].blknum;
+        }
+        write(Long.MAX_VALUE);
+        return new LogIterator(fm, segments, last);
+    }
+
+    public long append(byte[] logrec) {
+        if (logrec.length > maxRecordSize()) {
+            throw new RuntimeException("log record of " + logrec.length + " bytes does not fit in a page");
+        }
+        // 書き込み対象のサイズ計算(ログレコード + 長さとチェックサム)
+        int bytesneeded = logrec.length + RECORD_OVERHEAD;
+        int crc = checksum(logrec);
+        Slot s;
+        int recpos;
+        long lsn;
+        long prevLSN;
+        while (true) {
+            synchronized (this) {
+                s = ring[head];
+                // Page の残りサイズが書き込み対象よりも多いかどうかの判定
+                if (s.boundary - bytesneeded < HEADER_SIZE) {
+                    int next = (head + 1) % ring.length;
+                    if (next == tail) {
+                        // ring が一杯: 外で書き出してから再試行
+                        s = null;
+                    } else {
+                        s.sealed = true;
+                        head = next;
+                        s = ring[head];
+                        startPage(s);
+                        LogWriter w = writer;
+                        if (w != null) {
+                            // ページが埋まったので、writer に書き出させる
+                            w.pageFilled();
+                        }
+                    }
+                }
+                if (s != null) {
+                    recpos = s.boundary - bytesneeded;
+                    s.boundary = recpos;
+                    prevLSN = latestLSN;
+                    lsn = lsn(s.blknum, recpos);
+                    latestLSN = lsn;
+                    s.lastLSN = lsn;
+                    break;
+                }
+            }
+            write(Long.MAX_VALUE);
+        }
+        s.page.setBytes(recpos, logrec);
+        s.page.setInt(recpos + Integer.BYTES + logrec.length, crc);
+        // LSN の順に公開する
+        awaitPublished(prevLSN);
+        s.published = recpos;
+        publishedLSN = lsn;
+        return lsn;
+    }
+
+    /**
+     * Writes the current log pages and forces the log to disk.
+     * Called by the log writer.
+     * @return the LSN up to which the log is now durable
+     */
+    long writeAndForce() {
+        long lsn = write(Long.MAX_VALUE);
+        segments.force();
+        setFlushed(lsn);
+        return lsn;
+    }
+
+    private void setFlushed(long lsn) {
+        synchronized (flushed) {
+            if (lsn > flushedLSN) {
+                flushedLSN = lsn;
+                flushed.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the record at the specified position of a log page,
+     * or null if its length or checksum shows it to be damaged.
+     */
+    static byte[] recordAt(Page p, int pos, int blocksize) {
+        int len = p.getInt(pos);
+        if (len < 0 || len > blocksize - pos - RECORD_OVERHEAD) {
+            return null;
+        }
+        byte[] rec = p.getBytes(pos);
+        return p.getInt(pos + Integer.BYTES + len) == checksum(rec) ? rec : null;
+    }
+
+    private static int checksum(byte[] rec) {
+        CRC32C crc = new CRC32C();
+        crc.update(rec);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the boundary of the intact records of a log page.
+     * A torn write can damage the records added since the page's
+     * previous write; those written before are unchanged, so the page
+     * falls back to the previous boundary, or is treated as empty
+     * if even that fails.
+     * The page is damaged if the result is not the boundary in its header.
+     */
+    static int intactBoundary(Page p, int blocksize) {
+        for (int boundary : new int[] {p.getInt(0), p.getInt(Integer.BYTES)}) {
+            if (boundary < HEADER_SIZE || boundary > blocksize) {
+                continue;
+            }
+            int pos = boundary;
+            byte[] rec;
+            while (pos < blocksize && (rec = recordAt(p, pos, blocksize)) != null) {
+                pos += RECORD_OVERHEAD + rec.length;
+            }
+            if (pos == blocksize) {
+                return boundary;
+            }
+        }
+        return blocksize;
+    }
+
+    /**
+     * Finds the last page of the log, using the page as a buffer.
+     * A torn write can damage any page written since the log was
+     * last forced, which is no earlier than the page of the last
+     * checkpoint, since completing a checkpoint forces the log.
+     * The log ends at the first damaged page from there:
+     * the pages after it are discarded, since their records
+     * follow ones that were lost.
+     */
+    private int lastPage(int logsize, Page p) {
+        long checkpoint = segments.checkpointLSN();
+        int blknum = Math.max(segments.firstBlock(), checkpoint < 0 ? 0 : blockOf(checkpoint));
+        for (; blknum < logsize - 1; blknum++) {
+            fm.read(segments.block(blknum), p);
+            if (intactBoundary(p, fm.blocksize()) != p.getInt(0)) {
+                segments.removeAfter(blknum);
+                return blknum;
+            }
+        }
+        return logsize - 1;
+    }
+
+    private long lsn(int blknum, int recpos) {
+        int blocksize = fm.blocksize();
+        return (long) blknum * blocksize + (blocksize - recpos);
+    }
+
+    private int blockOf(long lsn) {
+        return (int) (lsn / fm.blocksize());
+    }
+
+    /**
+     * Writes the ring's pages, oldest first, until the log is
+     * written at least up to the specified LSN.
+     * Every record reserved when the write starts is included.
+     * Sealed pages whose records have all been published are
+     * released for reuse; the current page is written as far
+     * as its records have been published.
+     * @return the LSN up to which the log has been written
+     */
+    private long write(long lsn) {
+        synchronized (writeLock) {
+            if (lsn <= lastSavedLSN) {
+                return lastSavedLSN;
+            }
+            long target;
+            synchronized (this) {
+                target = latestLSN;
+            }
+            awaitPublished(target);
+            while (true) {
+                Slot s;
+                boolean release;
+                synchronized (this) {
+                    s = ring[tail];
+                    release = s.sealed && s.lastLSN <= publishedLSN;
+                }
+                // Page の先頭に公開済みの境界値と前回の境界値を記録してから書き出す
+                int published = s.published;
+                s.page.setInt(0, published);
+                s.page.setInt(Integer.BYTES, s.written);
+                fm.write(s.blk, s.page);
+                s.written = published;
+                if (!release) {
+                    break;
+                }
+                synchronized (this) {
+                    s.sealed = false;
+                    tail = (tail + 1) % ring.length;
+                }
+            }
+            lastSavedLSN = target;
+            return target;
+        }
+    }
+
+    /**
+     * Waits until the records up to the specified LSN have been published.
+     * Copies take no time, so the wait spins briefly before yielding.
+     */
+    private void awaitPublished(long lsn) {
+        for (int spins = 0; publishedLSN < lsn; spins++) {
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Assigns a new block of the log file to the slot.
+     */
+    private void startPage(Slot s) {
+        // 新しい Block を追加
+        s.blknum = segments.append();
+        s.blk = segments.block(s.blknum);
+        // 書き込み可能なサイズ(初期値は Block サイズ)
+        s.boundary = fm.blocksize();
+        s.published = s.boundary;
+        s.written = s.boundary;
+        s.lastLSN = latestLSN;
+    }
+
+    /**
+     * A page of the log's ring.
+     */
+    private static class Slot {
+        final Page page;
+        int blknum;             // the logical block number
+        BlockId blk;            // the block in its segment file
+        int boundary;           // the start of the last reserved record; guarded by the LogMgr
+        volatile int published; // the start of the last published record
+        int written;            // the boundary as of the last write; guarded by the writeLock
+        long lastLSN;           // the LSN of the last reserved record; guarded by the LogMgr
+        boolean sealed;         // full, and waiting to be written; guarded by the LogMgr
+
+        Slot(Page page) {
+            this.page = page;
+        }
+    }
 }
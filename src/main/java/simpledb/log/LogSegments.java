@@ -0,0 +1,171 @@
+package simpledb.log;
+
+import simpledb.file.BlockId;
+import simpledb.file.FileMgr;
+import simpledb.file.Page;
+
+import java.io.File;
+
+/**
+ * The files that hold the log.
+ * The log is a sequence of logical blocks, numbered from 0,
+ * stored in segment files of a fixed number of blocks each;
+ * segment i is the file logfile.i and holds logical blocks
+ * i * blocksPerSegment through (i + 1) * blocksPerSegment - 1.
+ * Segments at the front of the log can be deleted or archived;
+ * the number of the oldest remaining segment is kept in
+ * the control file logfile.ctl, which is updated before
+ * any segment is removed, together with the LSN of the
+ * last completed checkpoint.
+ */
+class LogSegments {
+    // control file layout
+    private static final int FIRST_SEGMENT = 0;
+    private static final int CHECKPOINT = FIRST_SEGMENT + Integer.BYTES;
+    private final FileMgr fm;
+    private final String logfile;
+    private final String ctlfile;
+    private final int blocksPerSegment;
+    private volatile int firstSegment;
+    private volatile long checkpointLSN;
+    private int lastSegment;
+    private int unforcedFrom;
+
+    LogSegments(FileMgr fm, String logfile, int segmentSize) {
+        this.fm = fm;
+        this.logfile = logfile;
+        ctlfile = logfile + ".ctl";
+        blocksPerSegment = Math.max(1, segmentSize / fm.blocksize());
+        Page ctl = new Page(fm.blocksize());
+        if (fm.exists(ctlfile) && fm.length(ctlfile) > 0) {
+            fm.read(new BlockId(ctlfile, 0), ctl);
+            firstSegment = ctl.getInt(FIRST_SEGMENT);
+            checkpointLSN = ctl.getLong(CHECKPOINT);
+        } else {
+            firstSegment = 0;
+            checkpointLSN = -1;
+        }
+        lastSegment = firstSegment;
+        while (fm.exists(segmentName(lastSegment + 1))) {
+            lastSegment++;
+        }
+        // a segment created just before a crash may hold nothing
+        while (lastSegment > firstSegment && fm.length(segmentName(lastSegment)) == 0) {
+            lastSegment--;
+        }
+    }
+
+    /**
+     * Returns the physical block holding the specified logical block.
+     */
+    BlockId block(int blknum) {
+        return new BlockId(segmentName(blknum / blocksPerSegment), blknum % blocksPerSegment);
+    }
+
+    /**
+     * Returns the number of logical blocks, including
+     * those of segments that have been removed.
+     */
+    synchronized int length() {
+        return lastSegment * blocksPerSegment + fm.length(segmentName(lastSegment));
+    }
+
+    /**
+     * Returns the number of the oldest logical block still on disk.
+     */
+    int firstBlock() {
+        return firstSegment * blocksPerSegment;
+    }
+
+    /**
+     * Appends a logical block, starting a new segment if the last one is full.
+     * @return the number of the new logical block
+     */
+    synchronized int append() {
+        int blknum = length();
+        lastSegment = blknum / blocksPerSegment;
+        fm.append(segmentName(lastSegment));
+        return blknum;
+    }
+
+    /**
+     * Forces every segment that may have writes not yet forced.
+     * The log is written in order, so these are the segments
+     * from the last one forced to the current one.
+     */
+    void force() {
+        int from, last;
+        synchronized (this) {
+            from = Math.max(unforcedFrom, firstSegment);
+            last = lastSegment;
+        }
+        for (int seg = from; seg <= last; seg++) {
+            fm.force(segmentName(seg));
+        }
+        synchronized (this) {
+            unforcedFrom = Math.max(unforcedFrom, last);
+        }
+    }
+
+    /**
+     * Discards the logical blocks after the specified one,
+     * deleting the segments that follow its own, newest first,
+     * and cutting its segment down to end with it.
+     */
+    synchronized void removeAfter(int blknum) {
+        int seg = blknum / blocksPerSegment;
+        for (; lastSegment > seg; lastSegment--) {
+            fm.delete(segmentName(lastSegment));
+        }
+        fm.truncate(segmentName(seg), blknum % blocksPerSegment + 1);
+        unforcedFrom = Math.min(unforcedFrom, seg);
+    }
+
+    /**
+     * Removes the segments that lie entirely before the specified
+     * logical block, deleting them, or moving them into the specified
+     * directory if it is not null. The last segment is never removed.
+     * @return the number of segments removed
+     */
+    synchronized int removeBefore(int blknum, File archiveDir) {
+        int newFirst = Math.min(blknum / blocksPerSegment, lastSegment);
+        int oldFirst = firstSegment;
+        if (newFirst <= oldFirst) {
+            return 0;
+        }
+        writeControl(newFirst, checkpointLSN);
+        firstSegment = newFirst;
+        for (int seg = oldFirst; seg < newFirst; seg++) {
+            if (archiveDir == null) {
+                fm.delete(segmentName(seg));
+            } else {
+                fm.moveTo(segmentName(seg), archiveDir);
+            }
+        }
+        return newFirst - oldFirst;
+    }
+
+    long checkpointLSN() {
+        return checkpointLSN;
+    }
+
+    /**
+     * Records the LSN of the last completed checkpoint in the control file.
+     */
+    synchronized void setCheckpointLSN(long lsn) {
+        writeControl(firstSegment, lsn);
+        checkpointLSN = lsn;
+    }
+
+    private void writeControl(int first, long checkpoint) {
+        Page ctl = new Page(fm.blocksize());
+        ctl.setInt(FIRST_SEGMENT, first);
+        ctl.setLong(CHECKPOINT, checkpoint);
+        fm.write(new BlockId(ctlfile, 0), ctl);
+        fm.force(ctlfile);
+    }
+
+    private String segmentName(int seg) {
+        return logfile + "." + seg;
+    }
+}
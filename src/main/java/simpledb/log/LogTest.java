@@ -18,7 +18,7 @@ public class LogTest {
         System.out.println("done");
 
         byte[] rec = createLogRecord("record111111111111111111111111", 100);
-        int lsn = lm.append(rec);
+        long lsn = lm.append(rec);
         System.out.print(lsn + " ");
         lsn = lm.append(rec);
         System.out.print(lsn + " ");
@@ -48,7 +48,7 @@ public class LogTest {
         System.out.print("Creating records: ");
         for (int i = start; i <= end; i++) {
             byte[] rec = createLogRecord("record" + i, i + 100);
-            int lsn = lm.append(rec);
+            long lsn = lm.append(rec);
             System.out.print(lsn + " ");
         }
         System.out.println();
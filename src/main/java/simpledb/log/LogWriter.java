@@ -0,0 +1,184 @@
+package simpledb.log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A dedicated thread that makes the log durable on behalf of committers.
+ * A committer asks for the log to be flushed up to its LSN and waits.
+ * The writer waits up to a window for more requests,
+ * or until the current log page fills, and then satisfies
+ * all of them with a single write and force of the log.
+ * It also writes log pages as they fill, so that appenders
+ * rarely find the log's ring of pages full.
+ */
+public class LogWriter {
+    private final LogMgr lm;
+    private final long window;
+    private final Thread writer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition requested = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    private long requestedLSN = -1;
+    private volatile long flushedLSN;
+    private boolean pageFull = false;
+    private boolean stopped = false;
+    private RuntimeException failure;
+    private long writes = 0;
+    private long requests = 0;
+
+    /**
+     * Creates and starts a writer for the log.
+     * @param window how long to wait for more requests, in microseconds
+     */
+    LogWriter(LogMgr lm, long window) {
+        this.lm = lm;
+        flushedLSN = lm.flushedLSN();
+        this.window = TimeUnit.MICROSECONDS.toNanos(window);
+        writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the average number of requests satisfied per write.
+     */
+    public double requestsPerWrite() {
+        lock.lock();
+        try {
+            return writes == 0 ? 0.0 : (double) requests / writes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the writer, and waits for a write in progress to finish.
+     * Committers waiting for it, and any that flush later,
+     * write and force the log themselves.
+     * The thread is not interrupted, since an interrupt
+     * during a force would close the log's file channel.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            stopped = true;
+            requested.signal();
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the log is durable up to the specified LSN.
+     */
+    void flush(long lsn) {
+        if (lsn <= flushedLSN) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!stopped) {
+                requests++;
+                if (lsn > requestedLSN) {
+                    requestedLSN = lsn;
+                    requested.signal();
+                }
+                while (flushedLSN < lsn && !stopped) {
+                    if (failure != null) {
+                        throw new RuntimeException("cannot flush the log", failure);
+                    }
+                    written.awaitUninterruptibly();
+                }
+            }
+            if (flushedLSN >= lsn) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // the writer has been shut down
+        written(lm.writeAndForce());
+    }
+
+    /**
+     * Tells the writer that a log page has filled,
+     * so pending requests need not wait out the window.
+     */
+    void pageFilled() {
+        lock.lock();
+        try {
+            pageFull = true;
+            requested.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (awaitRequests()) {
+            long lsn;
+            try {
+                lsn = lm.writeAndForce();
+            } catch (RuntimeException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    written.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            written(lsn);
+        }
+    }
+
+    private void written(long lsn) {
+        lock.lock();
+        try {
+            flushedLSN = Math.max(flushedLSN, lsn);
+            writes++;
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a request, and then for the window to close
+     * or the current page to fill.
+     * @return false if the writer has been shut down
+     */
+    private boolean awaitRequests() {
+        lock.lock();
+        try {
+            while (requestedLSN <= flushedLSN && !pageFull && !stopped) {
+                requested.awaitUninterruptibly();
+            }
+            long remaining = window;
+            while (!pageFull && !stopped && remaining > 0) {
+                remaining = requested.awaitNanos(remaining);
+            }
+            pageFull = false;
+            return !stopped;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
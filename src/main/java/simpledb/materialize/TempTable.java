@@ -1,5 +1,6 @@
 package simpledb.materialize;
 
+import simpledb.buffer.BufferRing;
 import simpledb.tx.Transaction;
 import simpledb.query.*;
 import simpledb.record.*;
@@ -31,9 +32,12 @@ public class TempTable {
    
    /**
     * Open a table scan for the temporary table.
+    * The scan writes through its own ring of buffers,
+    * so that filling a large temporary table does not
+    * evict the rest of the buffer pool.
     */
    public UpdateScan open() {
-      return new TableScan(tx, tblname, layout);
+      return new TableScan(tx, tblname, layout, new BufferRing());
    }
    
    public String tableName() {
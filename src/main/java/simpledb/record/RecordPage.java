@@ -1,5 +1,6 @@
 package simpledb.record;
 
+import simpledb.buffer.BufferRing;
 import simpledb.file.BlockId;
 import simpledb.tx.Transaction;
 
@@ -11,30 +12,42 @@ public class RecordPage {
     private BlockId blk;
     private Layout layout;
     public RecordPage(Transaction tx, BlockId blk, Layout layout) {
+        this(tx, blk, layout, null);
+    }
+
+    /**
+     * Creates a record page whose block is pinned through the specified ring.
+     * @param ring the ring of the scan, or null
+     */
+    public RecordPage(Transaction tx, BlockId blk, Layout layout, BufferRing ring) {
         this.tx = tx;
         this.blk = blk;
         this.layout = layout;
-        tx.pin(blk);
+        if (ring == null) {
+            tx.pin(blk);
+        } else {
+            tx.pin(blk, ring);
+        }
     }
 
     public int getInt(int slot, String fldname) {
         int fldpos = offset(slot) + layout.offset(fldname);
-        return tx.getInt(blk, fldpos);
+        return tx.getInt(blk, slot, fldpos);
     }
 
     public String getString(int slot, String fldname) {
         int fldpos = offset(slot) + layout.offset(fldname);
-        return tx.getString(blk, fldpos);
+        return tx.getString(blk, slot, fldpos);
     }
 
     public void setInt(int slot, String fldname, int val) {
         int fldpos = offset(slot) + layout.offset(fldname);
-        tx.setInt(blk, fldpos, val, true);;
+        tx.setInt(blk, slot, fldpos, val, true);
     }
 
     public void setString(int slot, String fldname, String val) {
         int fldpos = offset(slot) + layout.offset(fldname);
-        tx.setString(blk, fldpos, val, true);;
+        tx.setString(blk, slot, fldpos, val, true);
     }
 
     public void delete(int slot) {
@@ -62,11 +75,25 @@ public class RecordPage {
         return searchAfter(slot, USED);
     }
 
+    /**
+     * Claims the next empty slot after the specified one.
+     * A slot that looks empty is taken only if no other transaction
+     * has it locked, since its emptiness may come from a delete
+     * that has not committed; such slots are skipped rather than waited for.
+     * @return the claimed slot, or -1 if there is none
+     */
     public int insertAfter(int slot) {
-        int newslot = searchAfter(slot, EMPTY);
-        if (newslot >= 0)
-            setFlag(newslot, USED);
-        return newslot;
+        slot++;
+        while (isValidSlot(slot)) {
+            if (tx.peekInt(blk, offset(slot)) == EMPTY
+                    && tx.tryXLock(blk, slot)
+                    && tx.getInt(blk, slot, offset(slot)) == EMPTY) {
+                setFlag(slot, USED);
+                return slot;
+            }
+            slot++;
+        }
+        return -1;
     }
 
     public BlockId block() {
@@ -74,13 +101,13 @@ public class RecordPage {
     }
 
     private void setFlag(int slot, int flag) {
-        tx.setInt(blk, offset(slot), flag, true);
+        tx.setInt(blk, slot, offset(slot), flag, true);
     }
 
     private int searchAfter(int slot, int used) {
         slot++;
         while(isValidSlot(slot)) {
-            if (tx.getInt(blk, offset(slot)) == used) {
+            if (tx.getInt(blk, slot, offset(slot)) == used) {
                 return slot;
             }
             slot++;
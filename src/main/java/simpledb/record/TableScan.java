@@ -1,5 +1,6 @@
 package simpledb.record;
 
+import simpledb.buffer.BufferRing;
 import simpledb.file.BlockId;
 import simpledb.query.Constant;
 import simpledb.query.UpdateScan;
@@ -13,13 +14,36 @@ public class TableScan implements UpdateScan {
     private RecordPage rp;
     private String filename;
     private int currentslot;
-
+    private BufferRing ring;
+    private boolean fileLocked = false;
+
+    /**
+     * Opens a scan of the table.
+     * A table larger than a quarter of the buffer pool is read through
+     * a ring of buffers, so that scanning it does not evict
+     * the rest of the pool.
+     */
     public TableScan(Transaction tx, String tblname, Layout layout) {
+        this(tx, tblname, layout, null);
+        if (tx.size(filename) > tx.totalBuffs() / 4) {
+            ring = new BufferRing();
+        }
+    }
+
+    /**
+     * Opens a scan of the table whose blocks are pinned through the specified ring.
+     * @param ring the ring of buffers to use, or null to use the whole pool
+     */
+    public TableScan(Transaction tx, String tblname, Layout layout, BufferRing ring) {
         this.tx = tx;
         this.layout = layout;
+        this.ring = ring;
         filename = tblname + ".tbl";
         if (tx.size(filename) == 0) {
-            moveToNewBlock();
+            // a read-only transaction cannot create the first block;
+            // the scan stays empty until another transaction does
+            if (!tx.isReadOnly())
+                moveToNewBlock();
         } else {
             moveToBlock(0);
         }
@@ -40,14 +64,37 @@ public class TableScan implements UpdateScan {
     }
 
     public void beforeFirst() {
-        moveToBlock(0);
+        if (rp != null)
+            moveToBlock(0);
     }
 
+    /**
+     * Moves to the next record.
+     * The records read are locked one by one, empty slots included,
+     * so that no other transaction can insert a record where the scan
+     * has looked; once the scan reaches the last block, it locks
+     * the end of the table so that no block is appended either.
+     * A read-only transaction instead locks the whole table
+     * on the first call, which takes a single lock.
+     */
     public boolean next() {
+        if (!fileLocked) {
+            if (tx.isReadOnly())
+                tx.sLockFile(filename);
+            fileLocked = true;
+        }
+        if (rp == null) {
+            if (tx.size(filename) == 0)
+                return false;
+            moveToBlock(0);
+        }
         currentslot = rp.nextAfter(currentslot);
         while (currentslot < 0) {
             if (atLastBlock()) {
-                return false;
+                // a block may have been appended before the lock was granted
+                tx.sLockEnd(filename);
+                if (atLastBlock())
+                    return false;
             }
             moveToBlock(rp.block().number() + 1);
             currentslot = rp.nextAfter(currentslot);
@@ -84,6 +131,8 @@ public class TableScan implements UpdateScan {
     }
 
     public void insert() {
+        if (rp == null)
+            moveToNewBlock();
         currentslot = rp.insertAfter(currentslot);
         while (currentslot < 0) {
             if (atLastBlock()) {
@@ -102,7 +151,7 @@ public class TableScan implements UpdateScan {
     public void moveToRid(RID rid) {
         close();
         BlockId blk = new BlockId(filename, rid.blockNumber());
-        rp = new RecordPage(tx, blk, layout);
+        rp = new RecordPage(tx, blk, layout, ring);
         currentslot = rid.slot();
     }
 
@@ -113,14 +162,14 @@ public class TableScan implements UpdateScan {
     private void moveToBlock(int blknum) {
         close();
         BlockId blk = new BlockId(filename, blknum);
-        rp = new RecordPage(tx, blk, layout);
+        rp = new RecordPage(tx, blk, layout, ring);
         currentslot = -1;
     }
 
     private void moveToNewBlock() {
         close();
         BlockId blk = tx.append(filename);
-        rp = new RecordPage(tx, blk, layout);
+        rp = new RecordPage(tx, blk, layout, ring);
         rp.format();
         currentslot = -1;
     }
@@ -1,11 +1,21 @@
 package simpledb.server;
 
 import simpledb.buffer.BufferMgr;
+import simpledb.buffer.ClockPolicy;
+import simpledb.buffer.LRUKPolicy;
+import simpledb.buffer.ReplacementPolicy;
+import simpledb.buffer.TwoQPolicy;
 import simpledb.file.FileMgr;
+import simpledb.file.SyncPolicy;
 import simpledb.log.LogMgr;
 import simpledb.metadata.MetadataMgr;
 import simpledb.plan.*;
 import simpledb.tx.Transaction;
+import simpledb.tx.TransactionManager;
+import simpledb.tx.concurrency.ConcurrencyMgr;
+import simpledb.tx.recovery.Checkpointer;
+import simpledb.tx.recovery.RecoveryMgr;
+import simpledb.tx.recovery.RecoveryMode;
 
 import java.io.File;
 
@@ -13,18 +23,66 @@ public class SimpleDB {
     public static int BLOCK_SIZE = 400;
     public static int BUFFER_SIZE = 8;
     public static String LOG_FILE = "simpledb.log";
+    // the number of log pages buffered in memory, and the size of a log segment file in bytes
+    public static int LOG_BUFFER_PAGES = LogMgr.DEFAULT_PAGES;
+    public static int LOG_SEGMENT_SIZE = LogMgr.DEFAULT_SEGMENT_SIZE;
+    // buffer replacement policy: "clock", "lru-k" or "2q"
+    public static String REPLACEMENT_POLICY = "clock";
+    // number of independently locked buffer pool partitions;
+    // only takes effect for pools of at least 64 buffers per partition
+    public static int BUFFER_PARTITIONS = 1;
+    // background page cleaner: number of writer threads (0 disables it)
+    // and the time between scans for dirty buffers, in milliseconds
+    public static int CLEANER_THREADS = 0;
+    public static long CLEANER_INTERVAL = 100;
+    // the most blocks read ahead of a sequential scan (0 disables read-ahead)
+    public static int READ_AHEAD_WINDOW = 0;
+    // read blocks as views of memory-mapped files instead of copying them
+    public static boolean MAPPED_READS = false;
+    // when commits force data and log files to disk
+    public static SyncPolicy SYNC_POLICY = SyncPolicy.PER_COMMIT;
+    // under the GROUP policy, how long the log writer waits
+    // for more commits before forcing the log, in microseconds
+    public static long GROUP_COMMIT_WINDOW = 500;
+    // the number of bytes by which a file grows when it runs out of blocks
+    public static int FILE_EXTENT_SIZE = 1024 * 1024;
+    // the time between fuzzy checkpoints, in milliseconds (0 disables them),
+    // and whether each checkpoint removes the log segments recovery no longer needs
+    public static long CHECKPOINT_INTERVAL = 0;
+    public static boolean TRUNCATE_LOG = false;
+    // whether commits write the transaction's pages (UNDO) or only force the log (REDO_UNDO)
+    public static RecoveryMode RECOVERY_MODE = RecoveryMode.UNDO;
+    // the number of threads that redo and undo log records after a crash
+    public static int RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
+    // whether updates keep the values they overwrite, so that
+    // read-only transactions read a snapshot instead of taking locks
+    public static boolean MVCC = false;
 
     private FileMgr fm;
+    private TransactionManager txMgr;
     private BufferMgr bm;
     private LogMgr lm;
     private MetadataMgr mdm;
     private Planner planner;
+    private Checkpointer checkpointer;
 
     public SimpleDB(String dirname, int blocksize, int buffsize) {
         File dbDirectory = new File(dirname);
-        fm = new FileMgr(dbDirectory, blocksize);
-        lm = new LogMgr(fm, LOG_FILE);
-        bm = new BufferMgr(fm, lm, buffsize);
+        fm = new FileMgr(dbDirectory, blocksize, SYNC_POLICY, FILE_EXTENT_SIZE);
+        txMgr = new TransactionManager(fm);
+        lm = new LogMgr(fm, LOG_FILE, LOG_BUFFER_PAGES, LOG_SEGMENT_SIZE);
+        RecoveryMgr.setMode(RECOVERY_MODE);
+        RecoveryMgr.setRecoveryThreads(RECOVERY_THREADS);
+        ConcurrencyMgr.setMultiVersion(MVCC);
+        if (SYNC_POLICY == SyncPolicy.GROUP)
+            lm.startWriter(GROUP_COMMIT_WINDOW);
+        bm = new BufferMgr(fm, lm, buffsize, BUFFER_PARTITIONS, SimpleDB::replacementPolicy);
+        if (CLEANER_THREADS > 0)
+            bm.startCleaner(CLEANER_THREADS, CLEANER_INTERVAL);
+        if (MAPPED_READS)
+            bm.setMappedReads(true);
+        else if (READ_AHEAD_WINDOW > 0)
+            bm.startReadAhead(READ_AHEAD_WINDOW);
     }
 
     public SimpleDB(String dirname) {
@@ -44,6 +102,10 @@ public class SimpleDB {
         // UpdatePlanner up = new IndexUpdatePlanner(mdm);
         planner = new Planner(qp, up);
         tx.commit();
+        if (CHECKPOINT_INTERVAL > 0) {
+            checkpointer = new Checkpointer(txMgr(), lm, bm, CHECKPOINT_INTERVAL, TRUNCATE_LOG);
+            checkpointer.start();
+        }
     }
 
     public FileMgr fileMgr() {
@@ -58,8 +120,47 @@ public class SimpleDB {
         return bm;
     }
 
+    /**
+     * Returns the manager that numbers the database's transactions
+     * and keeps track of the active ones.
+     */
+    public TransactionManager txMgr() {
+        return txMgr;
+    }
+
+    /**
+     * Returns the background checkpointer, or null if none was started.
+     */
+    public Checkpointer checkpointer() {
+        return checkpointer;
+    }
+
     public Transaction newTx() {
-        return new Transaction(fm, lm, bm);
+        return new Transaction(txMgr, fm, lm, bm);
+    }
+
+    /**
+     * Creates a transaction that cannot modify the database.
+     * With MVCC, it reads a snapshot as of its start without taking locks.
+     */
+    public Transaction newReadOnlyTx() {
+        return new Transaction(txMgr, fm, lm, bm, true);
+    }
+
+    /**
+     * Stops the database's background threads and closes its files.
+     * The caller must ensure that no transaction is still running.
+     */
+    public void shutdown() {
+        if (checkpointer != null)
+            checkpointer.shutdown();
+        if (bm.cleaner() != null)
+            bm.cleaner().shutdown();
+        if (bm.readAhead() != null)
+            bm.readAhead().shutdown();
+        if (lm.writer() != null)
+            lm.writer().shutdown();
+        fm.close();
     }
 
     public Planner planner() {
@@ -69,4 +170,12 @@ public class SimpleDB {
     public MetadataMgr mdMgr() {
         return mdm;
     }
+
+    private static ReplacementPolicy replacementPolicy(int buffsize) {
+        return switch (REPLACEMENT_POLICY) {
+            case "lru-k" -> new LRUKPolicy(2);
+            case "2q" -> new TwoQPolicy(buffsize);
+            default -> new ClockPolicy();
+        };
+    }
 }
@@ -0,0 +1,93 @@
+package simpledb.server;
+
+import simpledb.file.BlockId;
+import simpledb.file.SyncPolicy;
+import simpledb.log.LogWriter;
+import simpledb.tx.Transaction;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Measures commit throughput under each sync policy.
+ * Each thread repeatedly updates its own block and commits.
+ * Transactions report themselves on System.out, so it is
+ * silenced while they run, to keep the printing out of the figures.
+ * Usage: SyncBenchmark [threads] [commits per thread]
+ */
+public class SyncBenchmark {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int commits = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        double[] results = new double[SyncPolicy.values().length];
+        for (SyncPolicy policy : SyncPolicy.values()) {
+            results[policy.ordinal()] = run(policy, threads, commits);
+        }
+        System.out.println(threads + " threads, " + commits + " commits each");
+        for (SyncPolicy policy : SyncPolicy.values()) {
+            System.out.printf("%-10s %10.0f commits/sec%n", policy, results[policy.ordinal()]);
+        }
+    }
+
+    private static double run(SyncPolicy policy, int threads, int commits) throws Exception {
+        String dirname = "syncbench-" + policy.name().toLowerCase();
+        deleteDirectory(new File(dirname));
+        SyncPolicy oldPolicy = SimpleDB.SYNC_POLICY;
+        PrintStream out = System.out;
+        SimpleDB.SYNC_POLICY = policy;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            SimpleDB db = new SimpleDB(dirname, 400, 64);
+            try {
+                String filename = "bench";
+                Transaction init = db.newTx();
+                for (int i = 0; i < threads; i++) {
+                    init.append(filename);
+                }
+                init.commit();
+
+                Thread[] workers = new Thread[threads];
+                for (int i = 0; i < threads; i++) {
+                    BlockId blk = new BlockId(filename, i);
+                    workers[i] = new Thread(() -> {
+                        for (int n = 0; n < commits; n++) {
+                            Transaction tx = db.newTx();
+                            tx.pin(blk);
+                            tx.setInt(blk, 0, n, true);
+                            tx.commit();
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Thread t : workers) {
+                    t.start();
+                }
+                for (Thread t : workers) {
+                    t.join();
+                }
+                long elapsed = System.nanoTime() - start;
+                LogWriter writer = db.logMgr().writer();
+                if (writer != null) {
+                    out.printf("%s: %.1f log flushes per write%n", policy, writer.requestsPerWrite());
+                }
+                return (double) threads * commits * 1e9 / elapsed;
+            } finally {
+                db.shutdown();
+            }
+        } finally {
+            System.setOut(out);
+            SimpleDB.SYNC_POLICY = oldPolicy;
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteDirectory(f);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.tx;
 
 import simpledb.buffer.Buffer;
 import simpledb.buffer.BufferMgr;
+import simpledb.buffer.BufferRing;
 import simpledb.file.BlockId;
 
 import java.util.ArrayList;
@@ -22,7 +23,11 @@ public class BufferList {
     }
 
     public void pin(BlockId blk) {
-        Buffer buff = bm.pin(blk);
+        pin(blk, null);
+    }
+
+    public void pin(BlockId blk, BufferRing ring) {
+        Buffer buff = bm.pin(blk, ring);
         buffers.put(blk, buff);
         pins.add(blk);
     }
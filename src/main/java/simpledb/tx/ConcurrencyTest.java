@@ -6,6 +6,7 @@ import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 
 public class ConcurrencyTest {
+    private static TransactionManager txMgr;
     private static FileMgr fm;
     private static LogMgr lm;
     private static BufferMgr bm;
@@ -13,6 +14,7 @@ public class ConcurrencyTest {
     public static void main(String[] args) {
         // initialize the database system
         SimpleDB db = new SimpleDB("datadir/concurrencytest", 400, 8);
+        txMgr = db.txMgr();
         fm = db.fileMgr();
         lm = db.logMgr();
         bm = db.bufferMgr();
@@ -27,7 +29,7 @@ public class ConcurrencyTest {
     static class A implements Runnable {
         public void run() {
             try {
-                Transaction txA = new Transaction(fm, lm, bm);
+                Transaction txA = new Transaction(txMgr, fm, lm, bm);
                 BlockId blk1 = new BlockId("testfile", 1);
                 BlockId blk2 = new BlockId("testfile", 2);
                 txA.pin(blk1);
@@ -51,7 +53,7 @@ public class ConcurrencyTest {
     static class B implements Runnable {
         public void run() {
             try {
-                Transaction txB = new Transaction(fm, lm, bm);
+                Transaction txB = new Transaction(txMgr, fm, lm, bm);
                 BlockId blk1 = new BlockId("testfile", 1);
                 BlockId blk2 = new BlockId("testfile", 2);
                 txB.pin(blk1);
@@ -74,7 +76,7 @@ public class ConcurrencyTest {
     static class C implements Runnable {
         public void run() {
             try {
-                Transaction txC = new Transaction(fm, lm, bm);
+                Transaction txC = new Transaction(txMgr, fm, lm, bm);
                 BlockId blk1 = new BlockId("testfile", 1);
                 BlockId blk2 = new BlockId("testfile", 2);
                 txC.pin(blk1);
@@ -2,6 +2,7 @@ package simpledb.tx;
 
 import simpledb.buffer.Buffer;
 import simpledb.buffer.BufferMgr;
+import simpledb.buffer.BufferRing;
 import simpledb.file.BlockId;
 import simpledb.file.FileMgr;
 import simpledb.file.Page;
@@ -10,34 +11,55 @@ import simpledb.tx.concurrency.ConcurrencyMgr;
 import simpledb.tx.recovery.RecoveryMgr;
 
 public class Transaction {
-    private static int nextTxNum = 0;
-    private static final int END_OF_FILE = -1;
+    private TransactionManager txMgr;
     private RecoveryMgr recoveryMgr;
     private ConcurrencyMgr concurMgr;
     private BufferMgr bm;
     private FileMgr fm;
     private int txnum;
+    private boolean readOnly;
+    private boolean rollingBack = false;
     private BufferList mybuffers;
 
-    public Transaction(FileMgr fm, LogMgr lm, BufferMgr bm) {
+    public Transaction(TransactionManager txMgr, FileMgr fm, LogMgr lm, BufferMgr bm) {
+        this(txMgr, fm, lm, bm, false);
+    }
+
+    /**
+     * Creates a transaction.
+     * A read-only transaction cannot modify blocks or append them,
+     * except those of its temporary tables; it writes no log records,
+     * so it costs no I/O to start or commit.
+     * If prior versions are being kept, it reads a snapshot
+     * of the database as of its start, without taking locks.
+     */
+    public Transaction(TransactionManager txMgr, FileMgr fm, LogMgr lm, BufferMgr bm, boolean readOnly) {
+        this.txMgr = txMgr;
         this.fm = fm;
         this.bm = bm;
-        txnum = nextTxNumber();
-        recoveryMgr = new RecoveryMgr(this, txnum, lm, bm);
-        concurMgr = new ConcurrencyMgr();
+        this.readOnly = readOnly;
+        txnum = txMgr.nextTxNumber();
+        System.out.println("new transaction: " + txnum);
+        recoveryMgr = new RecoveryMgr(txMgr, this, txnum, lm, bm);
+        concurMgr = new ConcurrencyMgr(txnum, readOnly);
         mybuffers = new BufferList(bm);
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     public void commit() {
         recoveryMgr.commit();
-        concurMgr.release();
+        concurMgr.commit();
         mybuffers.unpinAll();
         System.out.println("transaction " + txnum + " committed");
     }
 
     public void rollback() {
+        rollingBack = true;
         recoveryMgr.rollback();
-        concurMgr.release();
+        concurMgr.rollback();
         mybuffers.unpinAll();
         System.out.println("transaction " + txnum + " roll back");
     }
@@ -51,55 +73,225 @@ public class Transaction {
         mybuffers.pin(blk);
     }
 
+    /**
+     * Pins the block, reusing a buffer of the specified ring
+     * if the block is not resident.
+     */
+    public void pin(BlockId blk, BufferRing ring) {
+        mybuffers.pin(blk, ring);
+    }
+
     public void unpin(BlockId blk) {
         mybuffers.unpin(blk);
     }
 
     public int getInt(BlockId blk, int offset) {
+        if (concurMgr.readsSnapshot())
+            return snapshotInt(blk, offset);
         concurMgr.sLock(blk);
         Buffer buff = mybuffers.getBuffer(blk);
         return buff.contents().getInt(offset);
     }
 
     public String getString(BlockId blk, int offset) {
+        if (concurMgr.readsSnapshot())
+            return snapshotString(blk, offset);
         concurMgr.sLock(blk);
         Buffer buff = mybuffers.getBuffer(blk);
         return buff.contents().getString(offset);
     }
 
-    public void setInt(BlockId blk, int offset, int val, boolean okToLog) {
-        concurMgr.xLock(blk);
+    /**
+     * Reads an integer of a record, locking only the record
+     * rather than the whole block.
+     * @param slot the record's slot, which contains the offset
+     */
+    public int getInt(BlockId blk, int slot, int offset) {
+        if (concurMgr.readsSnapshot())
+            return snapshotInt(blk, offset);
+        concurMgr.sLock(blk, slot);
         Buffer buff = mybuffers.getBuffer(blk);
-        int lsn = -1;
-        if (okToLog) {
-            lsn = recoveryMgr.setInt(buff, offset, val);
-        }
-        Page p = buff.contents();
-        p.setInt(offset, val);
-        buff.setModified(txnum, lsn);
+        return buff.contents().getInt(offset);
     }
 
-    public void setString(BlockId blk, int offset, String val, boolean okToLog) {
-        concurMgr.xLock(blk);
+    /**
+     * Reads a string of a record, locking only the record
+     * rather than the whole block.
+     * @param slot the record's slot, which contains the offset
+     */
+    public String getString(BlockId blk, int slot, int offset) {
+        if (concurMgr.readsSnapshot())
+            return snapshotString(blk, offset);
+        concurMgr.sLock(blk, slot);
         Buffer buff = mybuffers.getBuffer(blk);
-        int lsn = -1;
-        if (okToLog)
-            lsn = recoveryMgr.setString(buff, offset, val);
-        Page p = buff.contents();
-        p.setString(offset, val);
-        buff.setModified(txnum, lsn);
+        return buff.contents().getString(offset);
+    }
+
+    /**
+     * Reads an integer without locking it, for a caller
+     * that will lock it and read it again before relying on it.
+     */
+    public int peekInt(BlockId blk, int offset) {
+        Buffer buff = mybuffers.getBuffer(blk);
+        return buff.contents().getInt(offset);
+    }
+
+    public void setInt(BlockId blk, int offset, int val, boolean okToLog) {
+        checkWritable(blk);
+        // a rollback already holds the locks of the changes it undoes
+        if (!rollingBack && !readOnly)
+            concurMgr.xLock(blk);
+        writeInt(blk, offset, val, okToLog);
+    }
+
+    public void setString(BlockId blk, int offset, String val, boolean okToLog) {
+        checkWritable(blk);
+        if (!rollingBack && !readOnly)
+            concurMgr.xLock(blk);
+        writeString(blk, offset, val, okToLog);
+    }
+
+    /**
+     * Writes an integer of a record, locking only the record
+     * rather than the whole block.
+     * @param slot the record's slot, which contains the offset
+     */
+    public void setInt(BlockId blk, int slot, int offset, int val, boolean okToLog) {
+        checkWritable(blk);
+        if (!readOnly)
+            concurMgr.xLock(blk, slot);
+        writeInt(blk, offset, val, okToLog);
+    }
+
+    /**
+     * Writes a string of a record, locking only the record
+     * rather than the whole block.
+     * @param slot the record's slot, which contains the offset
+     */
+    public void setString(BlockId blk, int slot, int offset, String val, boolean okToLog) {
+        checkWritable(blk);
+        if (!readOnly)
+            concurMgr.xLock(blk, slot);
+        writeString(blk, offset, val, okToLog);
     }
 
+    /**
+     * Locks a record exclusively if no other transaction has it locked.
+     * @return true if the transaction now holds the lock
+     */
+    public boolean tryXLock(BlockId blk, int slot) {
+        checkWritable(blk);
+        return readOnly || concurMgr.tryXLock(blk, slot);
+    }
+
+    /**
+     * Returns the number of blocks in the file.
+     * No lock is taken: a scan that must not see blocks appended
+     * by others locks the end of the file with {@link #sLockEnd}.
+     */
     public int size(String filename) {
-        BlockId dummyblk = new BlockId(filename, END_OF_FILE);
-        concurMgr.sLock(dummyblk);
         return fm.length(filename);
     }
 
+    /**
+     * Appends a block to the file and locks it exclusively.
+     * Only intention locks are taken on the file and its end, so
+     * transactions appending to the same file do not wait for each other;
+     * they do wait for a transaction whose scan has reached the end of the file.
+     * The block is locked before it is counted in the file's length,
+     * since another transaction could otherwise insert into it
+     * before the caller formats it. No other transaction can hold
+     * a lock on a block that is not yet in the file, so the lock
+     * is granted at once, under the file manager's append lock.
+     */
     public BlockId append(String filename) {
-        BlockId dummyblk = new BlockId(filename, END_OF_FILE);
-        concurMgr.xLock(dummyblk);
-        return fm.append(filename);
+        checkWritable(filename);
+        if (readOnly)
+            return fm.append(filename);
+        concurMgr.ixLock(filename);
+        return fm.append(filename, concurMgr::xLock);
+    }
+
+    /**
+     * Locks the whole file in shared mode, for a read-only scan that must
+     * not see records inserted or appended by other transactions.
+     * A transaction that will update the file must not take this lock,
+     * since it blocks every other transaction writing to the file.
+     */
+    public void sLockFile(String filename) {
+        concurMgr.sLock(filename);
+    }
+
+    /**
+     * Locks the end of the file in shared mode, so that no block
+     * is appended to it until the transaction ends.
+     */
+    public void sLockEnd(String filename) {
+        concurMgr.sLockEnd(filename);
+    }
+
+    /**
+     * Locks the whole file exclusively.
+     */
+    public void xLockFile(String filename) {
+        checkWritable(filename);
+        concurMgr.xLock(filename);
+    }
+
+    /**
+     * Locks the block exclusively, waiting if necessary.
+     */
+    public void xLock(BlockId blk) {
+        checkWritable(blk);
+        concurMgr.xLock(blk);
+    }
+
+    /**
+     * Locks the block exclusively if no other transaction has it locked.
+     * @return true if the transaction now holds the lock
+     */
+    public boolean tryXLock(BlockId blk) {
+        checkWritable(blk);
+        return concurMgr.tryXLock(blk);
+    }
+
+    /**
+     * Locks the block in shared mode until {@link #unlockBriefly}
+     * rather than until the transaction ends, for reading a page
+     * whose contents are protected by other locks, such as key locks.
+     */
+    public void sLockBriefly(BlockId blk) {
+        concurMgr.sLockBriefly(blk);
+    }
+
+    /**
+     * Locks the block like {@link #sLockBriefly} if no other
+     * transaction has it locked exclusively.
+     * @return true if the transaction now holds the lock
+     */
+    public boolean trySLockBriefly(BlockId blk) {
+        return concurMgr.trySLockBriefly(blk);
+    }
+
+    public void unlockBriefly(BlockId blk) {
+        concurMgr.unlockBriefly(blk);
+    }
+
+    /**
+     * Locks a key of an index in shared mode, so that no other
+     * transaction can insert or delete entries having it.
+     */
+    public void sLockKey(String index, Object key) {
+        concurMgr.sLock(index, key);
+    }
+
+    /**
+     * Locks a key of an index exclusively, before entries having it
+     * are inserted or deleted.
+     */
+    public void xLockKey(String index, Object key) {
+        checkWritable(index);
+        concurMgr.xLock(index, key);
     }
 
     public int blockSize() {
@@ -110,10 +302,75 @@ public class Transaction {
         return bm.available();
     }
 
-    private static synchronized int nextTxNumber() {
-        nextTxNum++;
-        System.out.println("new transaction: " + nextTxNum);
-        return nextTxNum;
+    public int totalBuffs() {
+        return bm.numBuffers();
+    }
+
+    private int snapshotInt(BlockId blk, int offset) {
+        Buffer buff = mybuffers.getBuffer(blk);
+        // the buffer's monitor keeps writers out while the value is looked up
+        synchronized (buff) {
+            return (Integer) concurMgr.readVersion(blk, offset, buff.contents().getInt(offset));
+        }
+    }
+
+    private String snapshotString(BlockId blk, int offset) {
+        Buffer buff = mybuffers.getBuffer(blk);
+        synchronized (buff) {
+            return (String) concurMgr.readVersion(blk, offset, buff.contents().getString(offset));
+        }
+    }
+
+    /**
+     * Changes the page under the buffer's monitor, which
+     * serves as the page latch: with record locks, other transactions
+     * may be changing other records of the page at the same time.
+     */
+    private void writeInt(BlockId blk, int offset, int val, boolean okToLog) {
+        Buffer buff = mybuffers.getBuffer(blk);
+        synchronized (buff) {
+            long lsn = -1;
+            if (okToLog && !readOnly)
+                lsn = recoveryMgr.setInt(buff, offset, val);
+            Page p = buff.contents();
+            if (ConcurrencyMgr.keepsVersions() && !readOnly)
+                concurMgr.saveVersion(blk, offset, p.getInt(offset));
+            p.setInt(offset, val);
+            buff.setModified(txnum, lsn);
+        }
+    }
+
+    private void writeString(BlockId blk, int offset, String val, boolean okToLog) {
+        Buffer buff = mybuffers.getBuffer(blk);
+        synchronized (buff) {
+            long lsn = -1;
+            if (okToLog && !readOnly)
+                lsn = recoveryMgr.setString(buff, offset, val);
+            Page p = buff.contents();
+            if (ConcurrencyMgr.keepsVersions() && !readOnly)
+                concurMgr.saveVersion(blk, offset, p.getString(offset));
+            p.setString(offset, val);
+            buff.setModified(txnum, lsn);
+        }
+    }
+
+    /**
+     * A read-only transaction may change only its temporary tables,
+     * which no other transaction sees and recovery discards,
+     * so it changes them without locks, log records or versions.
+     */
+    private void checkWritable(BlockId blk) {
+        if (readOnly && !isTemp(blk.fileName()))
+            throw new RuntimeException("cannot modify " + blk + " in read-only transaction " + txnum);
+    }
+
+    private void checkWritable(String filename) {
+        if (readOnly && !isTemp(filename))
+            throw new RuntimeException("cannot modify " + filename + " in read-only transaction " + txnum);
+    }
+
+    private static boolean isTemp(String filename) {
+        return filename.startsWith("temp");
     }
 
 }
@@ -0,0 +1,235 @@
+package simpledb.tx;
+
+import simpledb.file.BlockId;
+import simpledb.file.FileMgr;
+import simpledb.file.Page;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Hands out transaction numbers and keeps the registry of active transactions
+ * of a database.
+ * Numbers come from an atomic counter and keep growing across restarts,
+ * so that a number in the log always names a single transaction.
+ * The counter is persisted in batches: the highest number reserved
+ * is written and forced to the file simpledb.txnum before any number
+ * up to it is handed out, and a restart continues after it.
+ * Each active transaction is registered in a concurrent map before
+ * its start record is written, and the record's LSN is filled in after,
+ * so transactions start without any lock of their own.
+ * A checkpoint that finds a registration whose start record is still
+ * being written waits for its LSN, so that it lists every transaction
+ * whose start record precedes its begin record.
+ * Each database has a single manager, created by
+ * {@link simpledb.server.SimpleDB} and passed to its transactions.
+ */
+public class TransactionManager {
+    public static final String COUNTER_FILE = "simpledb.txnum";
+    // the numbers reserved by each write of the counter
+    private static final int BATCH_SIZE = 1000;
+    private final FileMgr fm;
+    private final BlockId blk = new BlockId(COUNTER_FILE, 0);
+    private final AtomicInteger lastTxNum;
+    // the highest number that has been persisted; written under this
+    private volatile int reserved;
+    private final Map<Integer, TxInfo> active = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the transaction manager of the database whose files
+     * are managed by the specified file manager,
+     * continuing the numbering saved in its directory.
+     */
+    public TransactionManager(FileMgr fm) {
+        this.fm = fm;
+        if (fm.exists(COUNTER_FILE) && fm.length(COUNTER_FILE) > 0) {
+            Page p = new Page(fm.blocksize());
+            fm.read(blk, p);
+            reserved = p.getInt(0);
+        } else {
+            fm.append(COUNTER_FILE);
+            reserved = 0;
+        }
+        lastTxNum = new AtomicInteger(reserved);
+    }
+
+    /**
+     * Returns a new transaction number.
+     * Only the first number of each batch waits for the counter to be written.
+     */
+    public int nextTxNumber() {
+        int txnum = lastTxNum.incrementAndGet();
+        if (txnum > reserved) {
+            reserve(txnum);
+        }
+        return txnum;
+    }
+
+    /**
+     * Returns the most recently handed out transaction number.
+     */
+    public int lastTxNumber() {
+        return lastTxNum.get();
+    }
+
+    /**
+     * Registers the transaction as active.
+     * @param startRecord writes the transaction's start record,
+     *                    returning its LSN, or -1 if none is written
+     * @return the LSN of the start record
+     */
+    public long begin(int txnum, boolean readOnly, LongSupplier startRecord) {
+        TxInfo info = new TxInfo(txnum, readOnly);
+        active.put(txnum, info);
+        try {
+            long lsn = startRecord.getAsLong();
+            info.setStartLSN(lsn);
+            return lsn;
+        } catch (RuntimeException e) {
+            active.remove(txnum);
+            // a checkpoint waiting for the record need not list the transaction
+            info.setStartLSN(-1);
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the transaction from the registry,
+     * once its commit or rollback record has been written.
+     */
+    public void end(int txnum) {
+        active.remove(txnum);
+    }
+
+    /**
+     * Writes the begin record of a checkpoint.
+     * @param beginRecord writes the begin record, returning its LSN
+     * @param startLSNs receives the transactions active at the begin record
+     *                  that have a start record, each with its LSN
+     * @return the LSN of the begin record
+     */
+    public long beginCheckpoint(LongSupplier beginRecord, Map<Integer, Long> startLSNs) {
+        long lsn = beginRecord.getAsLong();
+        // a transaction whose start record precedes the begin record
+        // was registered before the begin record was written
+        for (TxInfo info : active.values()) {
+            long start = info.awaitStartLSN();
+            if (start >= 0 && start < lsn) {
+                startLSNs.put(info.txnum, start);
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * Returns the active transactions, oldest first.
+     */
+    public List<TxInfo> activeTransactions() {
+        List<TxInfo> result = new ArrayList<>(active.values());
+        result.sort(Comparator.comparingInt(TxInfo::txnum));
+        return result;
+    }
+
+    /**
+     * Returns the oldest active transaction, or null if there is none.
+     */
+    public TxInfo oldestActive() {
+        TxInfo oldest = null;
+        for (TxInfo info : active.values()) {
+            if (oldest == null || info.txnum < oldest.txnum) {
+                oldest = info;
+            }
+        }
+        return oldest;
+    }
+
+    private synchronized void reserve(int txnum) {
+        while (reserved < txnum) {
+            int limit = reserved + BATCH_SIZE;
+            Page p = new Page(fm.blocksize());
+            p.setInt(0, limit);
+            fm.write(blk, p);
+            fm.force(COUNTER_FILE);
+            reserved = limit;
+        }
+    }
+
+    /**
+     * What the registry knows about an active transaction.
+     */
+    public static class TxInfo {
+        private static final long PENDING = -2;
+        private final int txnum;
+        private volatile long startLSN = PENDING;
+        private final boolean readOnly;
+        private final long startTime = System.currentTimeMillis();
+
+        TxInfo(int txnum, boolean readOnly) {
+            this.txnum = txnum;
+            this.readOnly = readOnly;
+        }
+
+        public int txnum() {
+            return txnum;
+        }
+
+        /**
+         * Returns the LSN of the transaction's start record,
+         * or -1 if it wrote none, or -2 if it is still writing it.
+         */
+        public long startLSN() {
+            return startLSN;
+        }
+
+        private synchronized void setStartLSN(long lsn) {
+            startLSN = lsn;
+            notifyAll();
+        }
+
+        /**
+         * Returns the LSN of the start record,
+         * waiting if the record is still being written.
+         */
+        long awaitStartLSN() {
+            if (startLSN != PENDING) {
+                return startLSN;
+            }
+            synchronized (this) {
+                boolean interrupted = false;
+                while (startLSN == PENDING) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return startLSN;
+            }
+        }
+
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
+        /**
+         * Returns how long the transaction has been running, in milliseconds.
+         */
+        public long age() {
+            return System.currentTimeMillis() - startTime;
+        }
+
+        @Override
+        public String toString() {
+            return "tx " + txnum + (readOnly ? " (read-only)" : "")
+                    + " started at LSN " + startLSN + ", " + age() + "ms ago";
+        }
+    }
+}
@@ -10,11 +10,12 @@ import simpledb.server.SimpleDB;
 public class TxTest {
     public static void main(String[] agrs) {
         SimpleDB db = new SimpleDB("datadir/txtest", 400, 8);
+        TransactionManager txMgr = db.txMgr();
         FileMgr fm = db.fileMgr();
         LogMgr lm = db.logMgr();
         BufferMgr bm = db.bufferMgr();
 
-        Transaction tx1 = new Transaction(fm, lm, bm);
+        Transaction tx1 = new Transaction(txMgr, fm, lm, bm);
         BlockId blk = new BlockId("testfile", 1);
         tx1.pin(blk);
         // The block initially contains unknown bytes,
@@ -23,7 +24,7 @@ public class TxTest {
         tx1.setString(blk, 40, "one", false);
         tx1.commit();
 
-        Transaction tx2 = new Transaction(fm, lm, bm);
+        Transaction tx2 = new Transaction(txMgr, fm, lm, bm);
         tx2.pin(blk);
         int ival = tx2.getInt(blk, 80);
         String sval = tx2.getString(blk, 40);
@@ -35,7 +36,7 @@ public class TxTest {
         tx2.setString(blk, 40, newsval, true);
         tx2.commit();
 
-        Transaction tx3 = new Transaction(fm, lm, bm);
+        Transaction tx3 = new Transaction(txMgr, fm, lm, bm);
         tx3.pin(blk);
         System.out.println("new value at location 80 = " + tx3.getInt(blk, 80));
         System.out.println("new value at location 40 = " + tx3.getString(blk, 40));
@@ -43,7 +44,7 @@ public class TxTest {
         System.out.println("pre-rollback value at location 80 = " + tx3.getInt(blk, 80));
         tx3.rollback();
 
-        Transaction tx4 = new Transaction(fm, lm, bm);
+        Transaction tx4 = new Transaction(txMgr, fm, lm, bm);
         tx4.pin(blk);
         System.out.println("post-rollback at location 80 = " + tx4.getInt(blk, 80));
         tx4.commit();
@@ -3,35 +3,430 @@ package simpledb.tx.concurrency;
 import simpledb.file.BlockId;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+
+import static simpledb.tx.concurrency.LockMode.IS;
+import static simpledb.tx.concurrency.LockMode.IX;
+import static simpledb.tx.concurrency.LockMode.S;
+import static simpledb.tx.concurrency.LockMode.X;
 
 public class ConcurrencyMgr {
     private static LockTable locktbl = new LockTable();
-    private Map<BlockId, String> locks = new HashMap<>();
+    private static VersionStore versions = new VersionStore();
+    private static volatile boolean multiVersion = false;
+    private final int txnum;
+    // the locks the transaction holds, on files, blocks and records
+    private Map<Object, LockMode> locks = new HashMap<>();
+    // the locks among them that are held only until the caller releases them
+    private Set<Object> brief = new HashSet<>();
+    // the time of the snapshot the transaction reads, or -1 if it takes locks
+    private long snapshot = -1;
+
+    public ConcurrencyMgr(int txnum) {
+        this(txnum, false);
+    }
 
+    /**
+     * Creates the concurrency manager of a transaction.
+     * A read-only transaction reads a snapshot instead of
+     * taking locks if prior versions are being kept.
+     */
+    public ConcurrencyMgr(int txnum, boolean readOnly) {
+        this.txnum = txnum;
+        if (readOnly && multiVersion) {
+            snapshot = versions.beginSnapshot();
+        }
+    }
+
+    /**
+     * Sets whether transactions keep the values they overwrite,
+     * so that read-only transactions can read snapshots.
+     */
+    public static void setMultiVersion(boolean multiVersion) {
+        ConcurrencyMgr.multiVersion = multiVersion;
+    }
+
+    /**
+     * Returns true if transactions keep the values they overwrite.
+     */
+    public static boolean keepsVersions() {
+        return multiVersion;
+    }
+
+    /**
+     * Returns true if the transaction reads a snapshot without locks.
+     */
+    public boolean readsSnapshot() {
+        return snapshot >= 0;
+    }
+
+    /**
+     * Keeps the value of a field that the transaction is about to overwrite.
+     * The caller must hold the monitor of the field's buffer.
+     */
+    public void saveVersion(BlockId blk, int offset, Object oldval) {
+        versions.save(txnum, blk, offset, oldval);
+    }
+
+    /**
+     * Returns the value of a field as of the transaction's snapshot.
+     * The caller must hold the monitor of the field's buffer.
+     * @param current the value now on the page
+     */
+    public Object readVersion(BlockId blk, int offset, Object current) {
+        return versions.read(snapshot, blk, offset, current);
+    }
+
+    /**
+     * Makes the transaction's changes visible to later snapshots,
+     * and releases its locks.
+     */
+    public void commit() {
+        if (readsSnapshot())
+            versions.endSnapshot(snapshot);
+        else
+            versions.commit(txnum);
+        release();
+    }
+
+    /**
+     * Discards the versions the transaction kept, once its changes
+     * have been undone, and releases its locks.
+     */
+    public void rollback() {
+        if (readsSnapshot())
+            versions.endSnapshot(snapshot);
+        else
+            versions.rollback(txnum);
+        release();
+    }
+
+    /**
+     * Obtains a shared lock on the block,
+     * with an intention lock on its file.
+     */
     public void sLock(BlockId blk) {
-        if (locks.get(blk) == null) {
-            locktbl.sLock(blk);
-            locks.put(blk, "S");
+        if (!holds(blk, S) && !holds(blk.fileName(), S)) {
+            lock(blk.fileName(), IS);
+            lock(blk, S);
         }
     }
 
+    /**
+     * Obtains an exclusive lock on the block, with an intention
+     * lock on its file, upgrading the shared lock if the
+     * transaction has one.
+     */
     public void xLock(BlockId blk) {
-        if (!hasXLock(blk)) {
-            sLock(blk);
-            locktbl.xLock(blk);
-            locks.put(blk, "X");
+        if (!holds(blk, X) && !holds(blk.fileName(), X)) {
+            lock(blk.fileName(), IX);
+            lock(blk, X);
+        }
+    }
+
+    /**
+     * Obtains a shared lock on the whole file, which covers
+     * every block and record in it and keeps blocks from
+     * being appended to it.
+     */
+    public void sLock(String filename) {
+        if (!readsSnapshot()) {
+            lock(filename, S);
+        }
+    }
+
+    /**
+     * Obtains an exclusive lock on the whole file.
+     */
+    public void xLock(String filename) {
+        lock(filename, X);
+    }
+
+    /**
+     * Obtains the locks a transaction needs before it appends
+     * a block to the file: an intention lock on the file and
+     * on its end, which waits for the scans that have reached the end.
+     */
+    public void ixLock(String filename) {
+        if (!holds(filename, X)) {
+            lock(filename, IX);
+            lock(new EndOfFile(filename), IX);
+        }
+    }
+
+    /**
+     * Obtains a shared lock on the end of the file, for a scan that
+     * has read its last block: no block can be appended to the file
+     * until the transaction ends, so the scan sees no phantoms.
+     */
+    public void sLockEnd(String filename) {
+        if (!readsSnapshot() && !holds(filename, S)) {
+            lock(filename, IS);
+            lock(new EndOfFile(filename), S);
+        }
+    }
+
+    /**
+     * Obtains a shared lock on the block that lasts only until
+     * {@link #unlockBriefly}, so that a page can be read in a state
+     * no other transaction is in the middle of changing.
+     * A lock the transaction already holds on the block is used instead.
+     */
+    public void sLockBriefly(BlockId blk) {
+        if (!holdsBriefly(blk)) {
+            locktbl.lock(blk, txnum, S);
+            locks.put(blk, S);
+            brief.add(blk);
+        }
+    }
+
+    /**
+     * Obtains a shared lock on the block like {@link #sLockBriefly},
+     * but only if no other transaction holds it in a conflicting mode.
+     * @return true if the transaction now holds the lock
+     */
+    public boolean trySLockBriefly(BlockId blk) {
+        if (holdsBriefly(blk)) {
+            return true;
+        }
+        if (!locktbl.tryLock(blk, txnum, S)) {
+            return false;
+        }
+        locks.put(blk, S);
+        brief.add(blk);
+        return true;
+    }
+
+    /**
+     * Releases a lock obtained by {@link #sLockBriefly}, unless the
+     * transaction has since locked the block for the rest of its life.
+     */
+    public void unlockBriefly(BlockId blk) {
+        if (brief.remove(blk)) {
+            locks.remove(blk);
+            locktbl.unlock(blk, txnum);
+        }
+    }
+
+    /**
+     * Obtains an exclusive lock on the block only if no
+     * other transaction holds a lock on it.
+     * @return true if the transaction now holds the lock
+     */
+    public boolean tryXLock(BlockId blk) {
+        if (holds(blk, X) || holds(blk.fileName(), X)) {
+            return true;
+        }
+        lock(blk.fileName(), IX);
+        if (!locktbl.tryLock(blk, txnum, X)) {
+            return false;
+        }
+        locks.merge(blk, X, LockMode::combine);
+        brief.remove(blk);
+        return true;
+    }
+
+    /**
+     * Obtains a shared lock on a key of an index, which
+     * keeps other transactions from inserting or deleting
+     * entries with that key.
+     */
+    public void sLock(String index, Object key) {
+        if (!readsSnapshot()) {
+            lock(new IndexKey(index, key), S);
+        }
+    }
+
+    /**
+     * Obtains an exclusive lock on a key of an index.
+     */
+    public void xLock(String index, Object key) {
+        lock(new IndexKey(index, key), X);
+    }
+
+    /**
+     * Obtains a shared lock on a record of the block,
+     * with intention locks on the block and its file,
+     * unless a lock on the block or the file already covers it.
+     */
+    public void sLock(BlockId blk, int slot) {
+        RecordKey rec = new RecordKey(blk, slot);
+        if (!covered(rec, S)) {
+            lock(blk.fileName(), IS);
+            lock(blk, IS);
+            lock(rec, S);
         }
     }
 
+    /**
+     * Obtains an exclusive lock on a record of the block,
+     * with intention locks on the block and its file,
+     * unless a lock on the block or the file already covers it.
+     */
+    public void xLock(BlockId blk, int slot) {
+        RecordKey rec = new RecordKey(blk, slot);
+        if (!covered(rec, X)) {
+            lock(blk.fileName(), IX);
+            lock(blk, IX);
+            lock(rec, X);
+        }
+    }
+
+    /**
+     * Obtains an exclusive lock on a record of the block
+     * only if the record is not locked by another transaction.
+     * The intention locks on the block and its file are waited for.
+     * @return true if the transaction now holds the lock
+     */
+    public boolean tryXLock(BlockId blk, int slot) {
+        RecordKey rec = new RecordKey(blk, slot);
+        if (covered(rec, X)) {
+            return true;
+        }
+        lock(blk.fileName(), IX);
+        // a block being filled by another transaction is passed over, not waited for
+        if (!holds(blk, IX)) {
+            if (!locktbl.tryLock(blk, txnum, IX)) {
+                return false;
+            }
+            locks.merge(blk, IX, LockMode::combine);
+        }
+        if (!locktbl.tryLock(rec, txnum, X)) {
+            return false;
+        }
+        locks.merge(rec, X, LockMode::combine);
+        return true;
+    }
+
     public void release() {
-        for (BlockId blk : locks.keySet())
-            locktbl.unlock(blk);
+        for (Object item : locks.keySet())
+            locktbl.unlock(item, txnum);
         locks.clear();
+        brief.clear();
+    }
+
+    private void lock(Object item, LockMode mode) {
+        if (!holds(item, mode)) {
+            locktbl.lock(item, txnum, mode);
+            locks.merge(item, mode, LockMode::combine);
+        }
+        // a lock taken for good is no longer a brief one
+        brief.remove(item);
+    }
+
+    /**
+     * Returns true if the block needs no new brief lock: the transaction
+     * reads a snapshot, or already holds a lock that lets it read the block.
+     * Otherwise the intention lock on the file is obtained, and
+     * a weaker lock held on the block is strengthened for good.
+     */
+    private boolean holdsBriefly(BlockId blk) {
+        if (readsSnapshot() || holds(blk, S) || holds(blk.fileName(), S)) {
+            return true;
+        }
+        lock(blk.fileName(), IS);
+        if (locks.containsKey(blk)) {
+            lock(blk, S);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean holds(Object item, LockMode mode) {
+        LockMode held = locks.get(item);
+        return held != null && held.covers(mode);
+    }
+
+    private boolean covered(RecordKey rec, LockMode mode) {
+        return holds(rec, mode) || holds(rec.blk, mode) || holds(rec.blk.fileName(), mode);
+    }
+
+    /**
+     * The lockable identity of a key of an index.
+     */
+    private static class IndexKey {
+        final String index;
+        final Object key;
+
+        IndexKey(String index, Object key) {
+            this.index = index;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexKey)) return false;
+            IndexKey k = (IndexKey) o;
+            return index.equals(k.index) && key.equals(k.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * index.hashCode() + key.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return index + " key " + key;
+        }
     }
 
-    private boolean hasXLock(BlockId blk) {
-        String locktype = locks.get(blk);
-        return locktype != null && locktype.equals("X");
+    /**
+     * The lockable identity of the end of a file, the place
+     * where blocks are appended to it.
+     */
+    private static class EndOfFile {
+        final String filename;
+
+        EndOfFile(String filename) {
+            this.filename = filename;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof EndOfFile) && filename.equals(((EndOfFile) o).filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return filename.hashCode() + 1;
+        }
+
+        @Override
+        public String toString() {
+            return filename + " end";
+        }
+    }
+
+    /**
+     * The lockable identity of a record: its block and slot.
+     */
+    private static class RecordKey {
+        final BlockId blk;
+        final int slot;
+
+        RecordKey(BlockId blk, int slot) {
+            this.blk = blk;
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RecordKey)) return false;
+            RecordKey r = (RecordKey) o;
+            return slot == r.slot && blk.equals(r.blk);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * blk.hashCode() + slot;
+        }
+
+        @Override
+        public String toString() {
+            return blk + " slot " + slot;
+        }
     }
 }
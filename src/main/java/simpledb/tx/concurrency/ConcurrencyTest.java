@@ -6,14 +6,17 @@ import simpledb.file.FileMgr;
 import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
+import simpledb.tx.TransactionManager;
 
 public class ConcurrencyTest {
+    private static TransactionManager txMgr;
     private static FileMgr fm;
     private static LogMgr lm;
     private static BufferMgr bm;
 
     public static void main(String[] args) {
         SimpleDB db = new SimpleDB("datadir/concurrencytest", 400, 8);
+        txMgr = db.txMgr();
         fm = db.fileMgr();
         lm = db.logMgr();
         bm = db.bufferMgr();
@@ -27,8 +30,8 @@ public class ConcurrencyTest {
 
     static class A implements Runnable {
         public void run() {
+            Transaction txA = new Transaction(txMgr, fm, lm, bm);
             try {
-                Transaction txA = new Transaction(fm, lm, bm);
                 BlockId blk1 = new BlockId("testfile", 1);
                 BlockId blk2 = new BlockId("testfile", 2);
                 txA.pin(blk1);
@@ -43,14 +46,19 @@ public class ConcurrencyTest {
                 System.out.println("Tx A: try commit");
                 txA.commit();
                 System.out.println("Tx A: committed");
-            } catch (InterruptedException e) {}
+            } catch (InterruptedException e) {
+            } catch (LockAbortException e) {
+                // chosen as the victim of a deadlock
+                System.out.println("Tx A: aborted");
+                txA.rollback();
+            }
         }
     }
 
     static class B implements Runnable {
         public void run() {
+            Transaction txB = new Transaction(txMgr, fm, lm, bm);
             try {
-                Transaction txB = new Transaction(fm, lm, bm);
                 BlockId blk1 = new BlockId("testfile", 1);
                 BlockId blk2 = new BlockId("testfile", 2);
                 txB.pin(blk1);
@@ -65,14 +73,19 @@ public class ConcurrencyTest {
                 System.out.println("Tx B: try commit");
                 txB.commit();
                 System.out.println("Tx B: committed");
-            } catch (InterruptedException e) {}
+            } catch (InterruptedException e) {
+            } catch (LockAbortException e) {
+                // chosen as the victim of a deadlock
+                System.out.println("Tx B: aborted");
+                txB.rollback();
+            }
         }
     }
 
     static class C implements Runnable {
         public void run() {
+            Transaction txC = new Transaction(txMgr, fm, lm, bm);
             try {
-                Transaction txC = new Transaction(fm, lm, bm);
                 BlockId blk1 = new BlockId("testfile", 1);
                 BlockId blk2 = new BlockId("testfile", 2);
                 txC.pin(blk1);
@@ -88,7 +101,12 @@ public class ConcurrencyTest {
                 System.out.println("Tx C: try commit");
                 txC.commit();
                 System.out.println("Tx C: committed");
-            } catch (InterruptedException e) {}
+            } catch (InterruptedException e) {
+            } catch (LockAbortException e) {
+                // chosen as the victim of a deadlock
+                System.out.println("Tx C: aborted");
+                txC.rollback();
+            }
         }
     }
 }
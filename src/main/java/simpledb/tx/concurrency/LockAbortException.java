@@ -1,5 +1,10 @@
 package simpledb.tx.concurrency;
 
 public class LockAbortException extends RuntimeException {
-}
+    public LockAbortException() {
+    }
 
+    public LockAbortException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb.tx.concurrency;
+
+import simpledb.file.BlockId;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures lock acquire/release throughput against the number of threads.
+ * Each thread runs transactions that lock a few blocks and release them.
+ * In the "private" workload every thread reads its own blocks;
+ * in "shared" all threads read the same blocks;
+ * in "mixed" they share the blocks and one lock in ten is exclusive;
+ * in "conflict" they lock shared blocks in random order and one lock
+ * in four is exclusive, so that requests wait and deadlocks occur.
+ * Usage: LockBenchmark [max threads] [milliseconds per run]
+ */
+public class LockBenchmark {
+    private static final int LOCKS_PER_TX = 4;
+    private static final int SHARED_BLOCKS = 16;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        String[] workloads = {"private", "shared", "mixed", "conflict"};
+        System.out.printf("%-8s", "threads");
+        for (String w : workloads) {
+            System.out.printf("%16s", w);
+        }
+        System.out.println("   (lock+unlock pairs/sec)");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.printf("%-8d", threads);
+            for (String w : workloads) {
+                System.out.printf("%16.0f", run(w, threads, millis));
+            }
+            System.out.println();
+        }
+    }
+
+    private static double run(String workload, int threads, long millis) throws Exception {
+        LockTable locktbl = new LockTable();
+        AtomicInteger nextTx = new AtomicInteger();
+        long[] counts = new long[threads];
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int id = i;
+            workers[i] = new Thread(() -> {
+                String filename = workload.equals("private") ? "bench" + id : "bench";
+                BlockId[] blks = new BlockId[LOCKS_PER_TX];
+                long n = 0;
+                int k = 0;
+                while (System.nanoTime() < deadline) {
+                    int txnum = nextTx.incrementAndGet();
+                    int locked = 0;
+                    try {
+                        for (int j = 0; j < LOCKS_PER_TX; j++, k++) {
+                            if (workload.equals("conflict")) {
+                                blks[j] = new BlockId(filename, ThreadLocalRandom.current().nextInt(SHARED_BLOCKS));
+                            } else {
+                                blks[j] = new BlockId(filename, k % SHARED_BLOCKS);
+                            }
+                            if ((workload.equals("mixed") && k % 10 == 0)
+                                    || (workload.equals("conflict") && k % 4 == 0)) {
+                                locktbl.xLock(blks[j], txnum);
+                            } else {
+                                locktbl.sLock(blks[j], txnum);
+                            }
+                            locked++;
+                        }
+                    } catch (LockAbortException e) {
+                        // chosen as a deadlock victim; release and go on
+                    }
+                    for (int j = 0; j < locked; j++) {
+                        locktbl.unlock(blks[j], txnum);
+                    }
+                    n += locked;
+                }
+                counts[id] = n;
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) {
+            t.start();
+        }
+        long total = 0;
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            total += counts[i];
+        }
+        long elapsed = System.nanoTime() - start;
+        return total * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb.tx.concurrency;
+
+/**
+ * The modes of hierarchical locks.
+ * A transaction takes an intention lock (IS or IX) on a file or block
+ * before it locks something inside it in the corresponding mode;
+ * SIX is a shared lock together with an intention to lock exclusively
+ * inside.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b] is true if a and b can be held by different transactions at once
+    private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      SIX    X
+            {true, true, true, true, false},     // IS
+            {true, true, false, false, false},   // IX
+            {true, false, true, false, false},   // S
+            {true, false, false, false, false},  // SIX
+            {false, false, false, false, false}, // X
+    };
+
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * Returns the weakest mode that grants
+     * everything this mode and the other one grant.
+     */
+    public LockMode combine(LockMode other) {
+        if ((this == IX && other == S) || (this == S && other == IX)) {
+            return SIX;
+        }
+        return (ordinal() >= other.ordinal()) ? this : other;
+    }
+
+    /**
+     * Returns true if this mode grants everything the other one does.
+     */
+    public boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+}
@@ -2,67 +2,517 @@ package simpledb.tx.concurrency;
 
 import simpledb.file.BlockId;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import static simpledb.tx.concurrency.LockMode.IS;
+import static simpledb.tx.concurrency.LockMode.S;
+import static simpledb.tx.concurrency.LockMode.X;
+
+/**
+ * The lock table, which grants locks on files, blocks and records
+ * to transactions, in the modes of {@link LockMode}.
+ * A lockable item is any object with value equality,
+ * such as a file name, a BlockId or a record identifier.
+ * The table is split into stripes by item hash, each with its own latch.
+ * An IS or S lock on an item that has no stronger holder and no waiting
+ * requests is granted on a fast path, by a compare-and-set on the lock's
+ * state, without taking any latch; everything else goes through the
+ * latch of the item's stripe.
+ * Each lock has a FIFO queue of waiting requests, and a request waits
+ * on its own condition, so a release wakes only the requests it grants.
+ * A transaction that strengthens a lock it holds goes to the head of the queue.
+ * A request that has waited DETECT_DELAY searches the waits-for graph
+ * for a cycle through it, and searches again each time its wait doubles;
+ * most waits end sooner, and cost no search.
+ * The search latches one stripe at a time, and a cycle it finds is
+ * confirmed with only the latches of the stripes on the cycle held;
+ * the youngest transaction in the cycle is then aborted.
+ * A wait that lasts MAX_TIME is aborted as well.
+ */
 public class LockTable {
     private static final long MAX_TIME = 10000;
+    private static final long DETECT_DELAY = 100;
+    private static final int DEFAULT_STRIPES = 64;
+    // unused locks a stripe keeps, so that an item read again and again
+    // does not need a new lock each time
+    private static final int IDLE_LOCKS = 64;
+
+    private final Stripe[] stripes;
+    // the request each waiting transaction is blocked on
+    private final Map<Integer, Request> waiting = new ConcurrentHashMap<>();
+    private final AtomicLong deadlocks = new AtomicLong();
+
+    public LockTable() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public LockTable(int numStripes) {
+        stripes = new Stripe[Math.max(1, numStripes)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public void sLock(BlockId blk, int txnum) {
+        lock(blk, txnum, S);
+    }
+
+    /**
+     * Grants the transaction an exclusive lock on the block,
+     * upgrading its shared lock if it has one.
+     */
+    public void xLock(BlockId blk, int txnum) {
+        lock(blk, txnum, X);
+    }
+
+    /**
+     * Grants the transaction a lock on the item, waiting if necessary.
+     * If the transaction already holds a lock on the item,
+     * the lock is strengthened to cover both modes.
+     */
+    public void lock(Object item, int txnum, LockMode mode) {
+        if (!tryFastLock(item, txnum, mode)) {
+            acquire(item, txnum, mode, true);
+        }
+    }
 
-    private final Map<BlockId, Integer> locks = new HashMap<>();
+    /**
+     * Grants the transaction a lock on the item only if
+     * that can be done without waiting.
+     * @return true if the lock was granted
+     */
+    public boolean tryLock(Object item, int txnum, LockMode mode) {
+        return tryFastLock(item, txnum, mode) || acquire(item, txnum, mode, false);
+    }
 
-    public synchronized void sLock(BlockId blk) {
+    public void unlock(Object item, int txnum) {
+        Stripe stripe = stripe(item);
+        // a lock with holders is never removed, so this is the lock they hold
+        Lock lock = stripe.locks.get(item);
+        if (lock == null) {
+            return;
+        }
+        LockMode shared = lock.sharers.remove(txnum);
+        if (shared != null) {
+            long s = lock.state.getAndAdd(-Lock.unit(shared));
+            if ((s & Lock.SLOW) == 0) {
+                if (s - Lock.unit(shared) == 0) {
+                    removeIfUnused(stripe, lock);
+                }
+                return;
+            }
+            // a stronger request may be waiting for the shared holders to leave
+            stripe.latch.lock();
+            try {
+                grantWaiting(lock);
+                removeIfUnused(stripe, lock);
+            } finally {
+                stripe.latch.unlock();
+            }
+            return;
+        }
+        stripe.latch.lock();
         try {
-            long timestamp = System.currentTimeMillis();
-            while (hasXlock(blk) && !waitingTooLong(timestamp))
-                wait(MAX_TIME);
-            if (hasXlock(blk))
-                throw new LockAbortException();
-            int val = getLockVal(blk); // will not be negative
-            locks.put(blk, val + 1);
-        } catch (InterruptedException e) {
-            throw new LockAbortException();
+            if (lock.holders.remove(txnum) == null) {
+                return;
+            }
+            grantWaiting(lock);
+            removeIfUnused(stripe, lock);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of deadlocks detected.
+     */
+    public long deadlocksDetected() {
+        return deadlocks.get();
+    }
+
+    /**
+     * Grants an IS or S lock without latching, if the item
+     * has no stronger holder and no waiting requests.
+     * @return true if the transaction now holds the lock
+     */
+    private boolean tryFastLock(Object item, int txnum, LockMode mode) {
+        if (mode != IS && mode != S) {
+            return false;
+        }
+        Stripe stripe = stripe(item);
+        while (true) {
+            Lock lock = stripe.locks.computeIfAbsent(item, Lock::new);
+            LockMode held = lock.sharers.putIfAbsent(txnum, mode);
+            if (held != null) {
+                // an IS lock is strengthened on the slow path
+                return held.covers(mode);
+            }
+            long s;
+            do {
+                s = lock.state.get();
+            } while ((s & (Lock.SLOW | Lock.DEAD)) == 0
+                    && !lock.state.compareAndSet(s, s + Lock.unit(mode)));
+            if ((s & (Lock.SLOW | Lock.DEAD)) == 0) {
+                return true;
+            }
+            lock.sharers.remove(txnum, mode);
+            if ((s & Lock.DEAD) == 0) {
+                return false;
+            }
+            // the lock was discarded after the lookup
+            stripe.locks.remove(item, lock);
         }
     }
 
-    public synchronized void xLock(BlockId blk) {
+    /**
+     * Grants the lock through the stripe's latch.
+     * @param wait whether to wait for the lock if it cannot be granted at once
+     * @return true if the lock was granted
+     */
+    private boolean acquire(Object item, int txnum, LockMode mode, boolean wait) {
+        Stripe stripe = stripe(item);
+        stripe.latch.lock();
         try {
-            long timestamp = System.currentTimeMillis();
-            while (hasOtherSLocks(blk) && !waitingTooLong(timestamp))
-                wait(MAX_TIME);
-            if (hasOtherSLocks(blk))
-                throw new LockAbortException();
-            locks.put(blk, -1);
-        } catch (InterruptedException e) {
-            throw new LockAbortException();
+            Lock lock = stripe.slowLock(item);
+            LockMode held = lock.heldBy(txnum);
+            if (held != null && held.covers(mode)) {
+                lock.updateMode();
+                return true;
+            }
+            Request req = new Request(txnum, (held == null) ? mode : held.combine(mode),
+                    lock, stripe.latch.newCondition());
+            if (!wait && !(lock.queue.isEmpty() && lock.compatible(req))) {
+                lock.updateMode();
+                removeIfUnused(stripe, lock);
+                return false;
+            }
+            if (held != null) {
+                lock.queue.addFirst(req);
+            } else {
+                lock.queue.addLast(req);
+            }
+            grantWaiting(lock);
+            if (req.granted) {
+                return true;
+            }
+            waiting.put(txnum, req);
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_TIME);
+                long delay = TimeUnit.MICROSECONDS.toNanos(DETECT_DELAY);
+                long remaining;
+                while (!req.granted && !req.aborted && (remaining = deadline - System.nanoTime()) > 0) {
+                    if (req.cond.awaitNanos(Math.min(remaining, delay)) > 0 || req.granted || req.aborted) {
+                        continue;
+                    }
+                    // the search takes other stripes' latches, so this one is released
+                    stripe.latch.unlock();
+                    try {
+                        resolveDeadlock(req);
+                    } finally {
+                        stripe.latch.lock();
+                    }
+                    delay *= 2;
+                }
+                if (req.aborted) {
+                    throw new LockAbortException("deadlock");
+                }
+                if (!req.granted) {
+                    cancel(req);
+                    throw new LockAbortException();
+                }
+            } catch (InterruptedException e) {
+                if (!req.granted) {
+                    cancel(req);
+                    throw new LockAbortException();
+                }
+            } finally {
+                waiting.remove(txnum, req);
+            }
+            return true;
+        } finally {
+            stripe.latch.unlock();
         }
     }
 
-    public synchronized void unlock(BlockId blk) {
-        int val = getLockVal(blk);
-        if (val > 1)
-            locks.put(blk, val - 1);
-        else {
-            locks.remove(blk);
-            notifyAll();
+    /**
+     * Grants the requests at the head of the lock's queue,
+     * in order, until one of them cannot be granted.
+     * The stripe's latch must be held.
+     */
+    private void grantWaiting(Lock lock) {
+        Request req;
+        while ((req = lock.queue.peekFirst()) != null && lock.compatible(req)) {
+            lock.queue.removeFirst();
+            LockMode shared = lock.sharers.remove(req.txnum);
+            if (shared != null) {
+                lock.state.addAndGet(-Lock.unit(shared));
+            }
+            if (req.mode == IS || req.mode == S) {
+                lock.sharers.put(req.txnum, req.mode);
+                lock.state.addAndGet(Lock.unit(req.mode));
+            } else {
+                lock.holders.put(req.txnum, req.mode);
+            }
+            // the transaction waits no longer, even before its thread wakes up
+            waiting.remove(req.txnum, req);
+            req.granted = true;
+            req.cond.signal();
         }
+        lock.updateMode();
     }
 
-    private boolean hasXlock(BlockId blk) {
-        return getLockVal(blk) < 0;
+    private void cancel(Request req) {
+        req.lock.queue.remove(req);
+        // requests queued behind the cancelled one may now be grantable
+        grantWaiting(req.lock);
+        removeIfUnused(stripe(req.lock.item), req.lock);
     }
 
-    private boolean hasOtherSLocks(BlockId blk) {
-        return getLockVal(blk) > 1;
+    private void removeIfUnused(Stripe stripe, Lock lock) {
+        if (stripe.locks.size() > IDLE_LOCKS && lock.state.compareAndSet(0, Lock.DEAD)) {
+            stripe.locks.remove(lock.item, lock);
+        }
     }
 
-    private boolean waitingTooLong(long timestamp) {
-        return System.currentTimeMillis() - timestamp > MAX_TIME;
+    /**
+     * Looks for cycles in the waits-for graph through the request,
+     * and breaks each by aborting the youngest transaction in it.
+     * The caller must hold no latch.
+     */
+    private void resolveDeadlock(Request req) {
+        List<Integer> cycle;
+        while (!req.aborted
+                && (cycle = findCycle(req.txnum, req.txnum, new ArrayList<>(), new HashSet<>())) != null) {
+            if (!breakCycle(cycle)) {
+                // the waits changed during the search; the next search will tell
+                return;
+            }
+        }
     }
 
-    private int getLockVal(BlockId blk) {
-        Integer ival = locks.get(blk);
-        return (ival == null) ? 0 : ival;
+    /**
+     * Latches the stripes of the requests on the cycle, in order,
+     * confirms that each request still waits for the next,
+     * and aborts the youngest transaction on it.
+     * @return false if the cycle no longer exists
+     */
+    private boolean breakCycle(List<Integer> cycle) {
+        List<Request> reqs = new ArrayList<>();
+        Set<Integer> path = new TreeSet<>();
+        for (int txnum : cycle) {
+            Request r = waiting.get(txnum);
+            if (r == null) {
+                return false;
+            }
+            reqs.add(r);
+            path.add(stripeIndex(r.lock.item));
+        }
+        for (int i : path) {
+            stripes[i].latch.lock();
+        }
+        try {
+            Request victim = null;
+            for (int i = 0; i < reqs.size(); i++) {
+                Request r = reqs.get(i);
+                int next = cycle.get((i + 1) % cycle.size());
+                if (waiting.get(r.txnum) != r || !blockers(r).contains(next)) {
+                    return false;
+                }
+                if (victim == null || r.txnum > victim.txnum) {
+                    victim = r;
+                }
+            }
+            deadlocks.incrementAndGet();
+            waiting.remove(victim.txnum, victim);
+            cancel(victim);
+            victim.aborted = true;
+            victim.cond.signal();
+            return true;
+        } finally {
+            for (int i : path) {
+                stripes[i].latch.unlock();
+            }
+        }
     }
 
+    /**
+     * Searches depth first for a path of waits from the transaction back to the start.
+     * @return the transactions on the path, or null if there is none
+     */
+    private List<Integer> findCycle(int start, int txnum, List<Integer> path, Set<Integer> visited) {
+        Request req = waiting.get(txnum);
+        if (req == null || !visited.add(txnum)) {
+            return null;
+        }
+        List<Integer> blockers;
+        Stripe stripe = stripe(req.lock.item);
+        stripe.latch.lock();
+        try {
+            blockers = (waiting.get(txnum) == req) ? blockers(req) : List.of();
+        } finally {
+            stripe.latch.unlock();
+        }
+        path.add(txnum);
+        for (int blocker : blockers) {
+            if (blocker == start) {
+                return path;
+            }
+            List<Integer> cycle = findCycle(start, blocker, path, visited);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        path.remove(path.size() - 1);
+        return null;
+    }
+
+    /**
+     * Returns the transactions the request waits for:
+     * the holders and the requests queued ahead of it that conflict with it.
+     * The latch of the request's stripe must be held.
+     */
+    private List<Integer> blockers(Request req) {
+        List<Integer> result = new ArrayList<>();
+        Lock lock = req.lock;
+        for (Map.Entry<Integer, LockMode> e : lock.holders.entrySet()) {
+            if (e.getKey() != req.txnum && !req.mode.compatibleWith(e.getValue())) {
+                result.add(e.getKey());
+            }
+        }
+        for (Map.Entry<Integer, LockMode> e : lock.sharers.entrySet()) {
+            if (e.getKey() != req.txnum && !req.mode.compatibleWith(e.getValue())) {
+                result.add(e.getKey());
+            }
+        }
+        for (Request ahead : lock.queue) {
+            if (ahead == req) {
+                break;
+            }
+            if (ahead.txnum != req.txnum && !req.mode.compatibleWith(ahead.mode)) {
+                result.add(ahead.txnum);
+            }
+        }
+        return result;
+    }
+
+    private Stripe stripe(Object item) {
+        return stripes[stripeIndex(item)];
+    }
+
+    private int stripeIndex(Object item) {
+        int h = item.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, stripes.length);
+    }
+
+    /**
+     * One stripe of the table: the locks of the items that hash to it,
+     * and the latch that guards their stronger holders and queues.
+     */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<Object, Lock> locks = new ConcurrentHashMap<>();
+
+        /**
+         * Returns the item's lock, marked so that the fast path
+         * leaves it alone until its mode is next updated.
+         * The latch must be held.
+         */
+        Lock slowLock(Object item) {
+            while (true) {
+                Lock lock = locks.computeIfAbsent(item, Lock::new);
+                long s = lock.state.get();
+                if ((s & Lock.DEAD) != 0) {
+                    locks.remove(item, lock);
+                } else if (lock.state.compareAndSet(s, s | Lock.SLOW)) {
+                    return lock;
+                }
+            }
+        }
+    }
+
+    /**
+     * The lock on one item.
+     * The IS and S holders are the sharers, which the state counts.
+     * The state has the SLOW bit set while there is a stronger holder
+     * or a waiting request, which sends every request to the slow path.
+     * A lock whose state is zero may be discarded by setting it to DEAD.
+     * The stronger holders and the queue are guarded by the stripe's latch.
+     */
+    private static class Lock {
+        static final long IS_COUNT = (1L << 24) - 1;
+        static final long S_COUNT = IS_COUNT << 24;
+        static final long SLOW = 1L << 62;
+        static final long DEAD = 1L << 63;
 
+        final Object item;
+        final AtomicLong state = new AtomicLong();
+        final Map<Integer, LockMode> sharers = new ConcurrentHashMap<>();
+        final Map<Integer, LockMode> holders = new HashMap<>();
+        final Deque<Request> queue = new ArrayDeque<>();
+
+        Lock(Object item) {
+            this.item = item;
+        }
+
+        static long unit(LockMode mode) {
+            return (mode == IS) ? 1 : (1L << 24);
+        }
+
+        LockMode heldBy(int txnum) {
+            LockMode mode = holders.get(txnum);
+            return (mode != null) ? mode : sharers.get(txnum);
+        }
+
+        boolean compatible(Request req) {
+            for (Map.Entry<Integer, LockMode> e : holders.entrySet()) {
+                if (e.getKey() != req.txnum && !req.mode.compatibleWith(e.getValue())) {
+                    return false;
+                }
+            }
+            LockMode own = sharers.get(req.txnum);
+            long s = state.get();
+            long iss = (s & IS_COUNT) - (own == IS ? 1 : 0);
+            long ss = ((s & S_COUNT) >>> 24) - (own == S ? 1 : 0);
+            return (iss == 0 || req.mode.compatibleWith(IS))
+                    && (ss == 0 || req.mode.compatibleWith(S));
+        }
+
+        void updateMode() {
+            boolean slow = !holders.isEmpty() || !queue.isEmpty();
+            long s;
+            do {
+                s = state.get();
+            } while (!state.compareAndSet(s, slow ? (s | SLOW) : (s & ~SLOW)));
+        }
+    }
+
+    private static class Request {
+        final int txnum;
+        final LockMode mode;
+        final Lock lock;
+        final Condition cond;
+        boolean granted = false;
+        boolean aborted = false;
+
+        Request(int txnum, LockMode mode, Lock lock, Condition cond) {
+            this.txnum = txnum;
+            this.mode = mode;
+            this.lock = lock;
+            this.cond = cond;
+        }
+    }
 }
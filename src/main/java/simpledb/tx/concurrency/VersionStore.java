@@ -0,0 +1,211 @@
+package simpledb.tx.concurrency;
+
+import simpledb.file.BlockId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The prior versions of the values that transactions overwrite,
+ * which let read-only transactions read a consistent snapshot
+ * without locks.
+ * The page always holds the newest value of a field. Each field
+ * that has been overwritten has a chain of versions, newest first;
+ * a version holds the value a transaction overwrote, so the chain
+ * can be walked back to the value as of any snapshot.
+ * A transaction's changes become visible to snapshots taken after
+ * it commits. A version is discarded once every snapshot
+ * that is still open can see the change that overwrote it.
+ * A writer and a reader of a field must both hold the monitor
+ * of the field's buffer, which keeps the page and the chain in step.
+ */
+class VersionStore {
+    private final Map<Field, Version> chains = new ConcurrentHashMap<>();
+    // the fields written by each unfinished writer
+    private final Map<Integer, List<Field>> written = new ConcurrentHashMap<>();
+    // the commit time of each writer whose versions are still kept
+    private final Map<Integer, Long> commitTimes = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Deque<Committed> committed = new ArrayDeque<>();
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    private long clock = 0;
+
+    /**
+     * Keeps the value of the field that the transaction is about to overwrite,
+     * unless the transaction has overwritten the field already.
+     */
+    void save(int txnum, BlockId blk, int offset, Object oldval) {
+        Field f = new Field(blk, offset);
+        Version head = chains.get(f);
+        if (head != null && head.txnum == txnum) {
+            return;
+        }
+        written.computeIfAbsent(txnum, n -> new ArrayList<>()).add(f);
+        chains.compute(f, (k, v) -> new Version(txnum, oldval, v));
+    }
+
+    /**
+     * Returns the value of the field as of the snapshot.
+     * @param current the value now on the page
+     */
+    Object read(long snapshot, BlockId blk, int offset, Object current) {
+        Version v = chains.get(new Field(blk, offset));
+        Object val = current;
+        while (v != null && !visible(v.txnum, snapshot)) {
+            val = v.oldval;
+            v = v.next;
+        }
+        return val;
+    }
+
+    /**
+     * Makes the transaction's changes visible to later snapshots.
+     */
+    void commit(int txnum) {
+        if (!written.containsKey(txnum)) {
+            return;
+        }
+        synchronized (this) {
+            long time = ++clock;
+            // the commit time is set before the writer stops being unfinished
+            commitTimes.put(txnum, time);
+            committed.add(new Committed(txnum, time, written.remove(txnum)));
+            purge();
+        }
+    }
+
+    /**
+     * Discards the versions kept for the transaction,
+     * whose changes have already been undone on the pages.
+     */
+    void rollback(int txnum) {
+        List<Field> fields = written.get(txnum);
+        if (fields == null) {
+            return;
+        }
+        for (Field f : fields) {
+            chains.computeIfPresent(f, (k, v) -> (v.txnum == txnum) ? v.next : v);
+        }
+        written.remove(txnum);
+    }
+
+    /**
+     * Opens a snapshot of the changes committed so far.
+     * @return the snapshot's time
+     */
+    synchronized long beginSnapshot() {
+        snapshots.merge(clock, 1, Integer::sum);
+        return clock;
+    }
+
+    synchronized void endSnapshot(long snapshot) {
+        if (snapshots.merge(snapshot, -1, Integer::sum) == 0) {
+            snapshots.remove(snapshot);
+        }
+        purge();
+    }
+
+    private boolean visible(int writer, long snapshot) {
+        // checked before the commit time, which a writer gets before it finishes
+        boolean unfinished = written.containsKey(writer);
+        Long time = commitTimes.get(writer);
+        if (unfinished) {
+            return time != null && time <= snapshot;
+        }
+        // a finished writer without a commit time is visible to every snapshot
+        return time == null || time <= snapshot;
+    }
+
+    /**
+     * Discards the versions overwritten by the transactions
+     * that every open snapshot can see.
+     */
+    private void purge() {
+        long horizon = snapshots.isEmpty() ? clock : snapshots.firstKey();
+        while (!committed.isEmpty() && committed.peekFirst().time <= horizon) {
+            Committed c = committed.pollFirst();
+            for (Field f : c.fields) {
+                chains.computeIfPresent(f, (k, v) -> truncate(v, c.txnum));
+            }
+            commitTimes.remove(c.txnum);
+        }
+    }
+
+    /**
+     * Cuts the chain at the version the writer overwrote;
+     * the older versions were overwritten before it.
+     * @return the new head of the chain, or null if it is empty
+     */
+    private static Version truncate(Version head, int writer) {
+        if (head.txnum == writer) {
+            return null;
+        }
+        for (Version v = head; v.next != null; v = v.next) {
+            if (v.next.txnum == writer) {
+                v.next = null;
+                break;
+            }
+        }
+        return head;
+    }
+
+    /**
+     * A field of a block, identified by its offset.
+     */
+    private static class Field {
+        final BlockId blk;
+        final int offset;
+
+        Field(BlockId blk, int offset) {
+            this.blk = blk;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Field)) return false;
+            Field f = (Field) o;
+            return offset == f.offset && blk.equals(f.blk);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * blk.hashCode() + offset;
+        }
+    }
+
+    /**
+     * A value of a field, as it was before the transaction overwrote it.
+     */
+    private static class Version {
+        final int txnum;
+        final Object oldval;
+        volatile Version next;
+
+        Version(int txnum, Object oldval, Version next) {
+            this.txnum = txnum;
+            this.oldval = oldval;
+            this.next = next;
+        }
+    }
+
+    /**
+     * A committed writer whose versions are still kept.
+     */
+    private static class Committed {
+        final int txnum;
+        final long time;
+        final List<Field> fields;
+
+        Committed(int txnum, long time, List<Field> fields) {
+            this.txnum = txnum;
+            this.time = time;
+            this.fields = fields;
+        }
+    }
+}
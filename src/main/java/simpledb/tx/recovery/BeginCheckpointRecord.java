@@ -0,0 +1,44 @@
+package simpledb.tx.recovery;
+
+import simpledb.log.LogMgr;
+import simpledb.tx.Transaction;
+
+/**
+ * Marks the start of a fuzzy checkpoint.
+ * Transactions keep running while the checkpoint is taken,
+ * so their records may appear between this record
+ * and the checkpoint's end records.
+ */
+public class BeginCheckpointRecord implements LogRecord {
+
+    public BeginCheckpointRecord() {
+    }
+
+    @Override
+    public int op() {
+        return BEGIN_CHECKPOINT;
+    }
+
+    @Override
+    public int txNumber() {
+        return -1; // dummy value
+    }
+
+    @Override
+    public long prevLSN() {
+        return -1;
+    }
+
+    @Override
+    public void undo(Transaction tx) {
+    }
+
+    public String toString() {
+        return "<BEGIN_CHECKPOINT>";
+    }
+
+    public static long writeToLog(LogMgr lm) {
+        byte[] rec = new LogEncoder().putInt(BEGIN_CHECKPOINT).toBytes();
+        return lm.append(rec);
+    }
+}
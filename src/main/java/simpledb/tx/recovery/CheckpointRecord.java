@@ -1,6 +1,5 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
 import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
 
@@ -19,6 +18,11 @@ public class CheckpointRecord implements LogRecord {
         return -1; // dummy value
     }
 
+    @Override
+    public long prevLSN() {
+        return -1;
+    }
+
     @Override
     public void undo(Transaction tx) {
     }
@@ -27,10 +31,8 @@ public class CheckpointRecord implements LogRecord {
         return "<CHECKPOINT>";
     }
 
-    public static int writeToLog(LogMgr lm) {
-        byte[] rec = new byte[Integer.BYTES];
-        Page p = new Page(rec);
-        p.setInt(0, CHECKPOINT);
+    public static long writeToLog(LogMgr lm) {
+        byte[] rec = new LogEncoder().putInt(CHECKPOINT).toBytes();
         return lm.append(rec);
     }
 }
@@ -0,0 +1,105 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.BufferMgr;
+import simpledb.file.BlockId;
+import simpledb.log.LogMgr;
+import simpledb.tx.TransactionManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A background thread that takes fuzzy checkpoints.
+ * A checkpoint writes a begin record, then end records listing
+ * the transactions active at the begin record and the dirty page table,
+ * and finally records the begin record's LSN in the log's control file.
+ * Transactions are not stopped and no page is written,
+ * so a checkpoint costs little more than its log records.
+ * Recovery need not read the log past the last checkpoint's begin record,
+ * except for the records of the transactions it lists.
+ */
+public class Checkpointer {
+    private final TransactionManager txMgr;
+    private final LogMgr lm;
+    private final BufferMgr bm;
+    private final long interval;
+    private final boolean truncate;
+    private Thread thread;
+    private volatile boolean running = true;
+    private long checkpoints = 0;
+
+    /**
+     * Creates a checkpointer, whose thread is started by {@link #start}.
+     * @param interval the time between checkpoints, in milliseconds
+     * @param truncate whether to remove the log segments
+     *                 that recovery no longer needs after each checkpoint
+     */
+    public Checkpointer(TransactionManager txMgr, LogMgr lm, BufferMgr bm, long interval, boolean truncate) {
+        this.txMgr = txMgr;
+        this.lm = lm;
+        this.bm = bm;
+        this.interval = interval;
+        this.truncate = truncate;
+    }
+
+    /**
+     * Starts taking checkpoints in the background.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::checkpointLoop, "checkpointer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns the number of checkpoints taken.
+     */
+    public synchronized long checkpointsTaken() {
+        return checkpoints;
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Takes a checkpoint now.
+     * @return the LSN of the checkpoint's begin record
+     */
+    public synchronized long checkpoint() {
+        Map<Integer, Long> activeTxs = new HashMap<>();
+        long begin = RecoveryMgr.beginCheckpoint(txMgr, lm, activeTxs);
+        Map<BlockId, Long> dirtyPages = bm.dirtyPages();
+        long end = EndCheckpointRecord.writeToLog(lm, begin, activeTxs, dirtyPages);
+        lm.flush(end);
+        lm.setCheckpointLSN(begin);
+        checkpoints++;
+        if (truncate) {
+            long oldest = begin;
+            for (long lsn : activeTxs.values()) {
+                oldest = Math.min(oldest, lsn);
+            }
+            for (long lsn : dirtyPages.values()) {
+                oldest = Math.min(oldest, lsn);
+            }
+            lm.truncate(oldest);
+        }
+        return begin;
+    }
+
+    private void checkpointLoop() {
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            checkpoint();
+        }
+    }
+}
@@ -1,15 +1,13 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
 import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
 
 public class CommitRecord implements LogRecord {
     private int txnum;
 
-    public CommitRecord(Page p) {
-        int tpos = Integer.BYTES;
-        txnum = p.getInt(tpos);
+    CommitRecord(LogDecoder d) {
+        txnum = d.getInt();
     }
 
     @Override
@@ -22,6 +20,11 @@ public class CommitRecord implements LogRecord {
         return txnum;
     }
 
+    @Override
+    public long prevLSN() {
+        return -1;
+    }
+
     @Override
     public void undo(Transaction tx) {
     }
@@ -30,11 +33,8 @@ public class CommitRecord implements LogRecord {
         return "<COMMIT " + txnum + ">";
     }
 
-    public static int writeToLog(LogMgr lm, int txnum) {
-        byte[] rec = new byte[2*Integer.BYTES];
-        Page p = new Page(rec);
-        p.setInt(0, COMMIT);
-        p.setInt(Integer.BYTES, txnum);
+    public static long writeToLog(LogMgr lm, int txnum) {
+        byte[] rec = new LogEncoder().putInt(COMMIT).putInt(txnum).toBytes();
         return lm.append(rec);
     }
 }
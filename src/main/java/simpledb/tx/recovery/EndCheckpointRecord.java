@@ -0,0 +1,124 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.BlockId;
+import simpledb.log.LogMgr;
+import simpledb.tx.Transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Completes a fuzzy checkpoint, listing the transactions that were
+ * active when it began, each with the LSN of its start record,
+ * and the dirty page table, each page with its recLSN.
+ * A log record must fit in a log page, so a large checkpoint
+ * is written as several of these records, the last one flagged as such.
+ */
+public class EndCheckpointRecord implements LogRecord {
+    private long beginLSN;
+    private boolean last;
+    private Map<Integer, Long> activeTxs = new HashMap<>();
+    private Map<BlockId, Long> dirtyPages = new HashMap<>();
+
+    EndCheckpointRecord(LogDecoder d, LogMgr lm) {
+        beginLSN = d.getLong();
+        last = d.getInt() == 1;
+        int ntxs = d.getInt();
+        for (int i = 0; i < ntxs; i++) {
+            int txnum = d.getInt();
+            activeTxs.put(txnum, d.getLong());
+        }
+        int npages = d.getInt();
+        for (int i = 0; i < npages; i++) {
+            String filename = lm.fileName(d.getInt());
+            BlockId blk = new BlockId(filename, d.getInt());
+            dirtyPages.put(blk, d.getLong());
+        }
+    }
+
+    @Override
+    public int op() {
+        return END_CHECKPOINT;
+    }
+
+    @Override
+    public int txNumber() {
+        return -1; // dummy value
+    }
+
+    @Override
+    public long prevLSN() {
+        return -1;
+    }
+
+    @Override
+    public void undo(Transaction tx) {
+    }
+
+    /**
+     * Returns the LSN of the checkpoint's begin record.
+     */
+    public long beginLSN() {
+        return beginLSN;
+    }
+
+    /**
+     * Returns true if this is the checkpoint's final end record.
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    public Map<Integer, Long> activeTransactions() {
+        return activeTxs;
+    }
+
+    public Map<BlockId, Long> dirtyPages() {
+        return dirtyPages;
+    }
+
+    public String toString() {
+        return "<END_CHECKPOINT " + beginLSN + " " + activeTxs + " " + dirtyPages + (last ? "" : " ...") + ">";
+    }
+
+    /**
+     * Writes the checkpoint's end records.
+     * @return the LSN of the final end record
+     */
+    public static long writeToLog(LogMgr lm, long beginLSN,
+                                  Map<Integer, Long> activeTxs, Map<BlockId, Long> dirtyPages) {
+        // the largest encodings of the fixed fields and of each entry
+        int header = 1 + 10 + 1 + 5 + 5;
+        int txSize = 5 + 10;
+        int pageSize = 5 + 5 + 10;
+        int room = lm.maxRecordSize() - header;
+        List<Map.Entry<Integer, Long>> txs = new ArrayList<>(activeTxs.entrySet());
+        List<Map.Entry<BlockId, Long>> pages = new ArrayList<>(dirtyPages.entrySet());
+        int t = 0, d = 0;
+        while (true) {
+            int ntxs = Math.min(txs.size() - t, room / txSize);
+            int npages = (t + ntxs < txs.size()) ? 0
+                    : Math.min(pages.size() - d, (room - ntxs * txSize) / pageSize);
+            boolean last = t + ntxs == txs.size() && d + npages == pages.size();
+            LogEncoder e = new LogEncoder()
+                    .putInt(END_CHECKPOINT)
+                    .putLong(beginLSN)
+                    .putInt(last ? 1 : 0)
+                    .putInt(ntxs);
+            for (int i = 0; i < ntxs; i++, t++) {
+                e.putInt(txs.get(t).getKey()).putLong(txs.get(t).getValue());
+            }
+            e.putInt(npages);
+            for (int i = 0; i < npages; i++, d++) {
+                BlockId blk = pages.get(d).getKey();
+                e.putInt(lm.fileId(blk.fileName())).putInt(blk.number()).putLong(pages.get(d).getValue());
+            }
+            long lsn = lm.append(e.toBytes());
+            if (last) {
+                return lsn;
+            }
+        }
+    }
+}
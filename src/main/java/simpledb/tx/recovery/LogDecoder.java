@@ -0,0 +1,38 @@
+package simpledb.tx.recovery;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the fields of a log record written by a {@link LogEncoder}, in order.
+ */
+class LogDecoder {
+    private final byte[] buf;
+    private int pos = 0;
+
+    LogDecoder(byte[] buf) {
+        this.buf = buf;
+    }
+
+    int getInt() {
+        return (int) getLong();
+    }
+
+    long getLong() {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos++];
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    String getString() {
+        int len = getInt();
+        String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+}
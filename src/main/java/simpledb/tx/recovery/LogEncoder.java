@@ -0,0 +1,56 @@
+package simpledb.tx.recovery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds a log record in a compact form.
+ * Integers are written as zigzag varints, so that small values,
+ * negative or not, take one or two bytes; strings are written
+ * as a varint length followed by their UTF-8 bytes.
+ */
+class LogEncoder {
+    private byte[] buf = new byte[32];
+    private int pos = 0;
+
+    LogEncoder putInt(int n) {
+        return putLong(n);
+    }
+
+    LogEncoder putLong(long n) {
+        long v = (n << 1) ^ (n >> 63);
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return this;
+    }
+
+    LogEncoder putString(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        putInt(b.length);
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, pos, b.length);
+        pos += b.length;
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    int size() {
+        return pos;
+    }
+
+    byte[] toBytes() {
+        return Arrays.copyOf(buf, pos);
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(2 * buf.length, pos + n));
+        }
+    }
+}
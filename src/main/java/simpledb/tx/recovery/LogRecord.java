@@ -1,6 +1,6 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
+import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
 
 public interface LogRecord {
@@ -9,22 +9,39 @@ public interface LogRecord {
             COMMIT = 2,
             ROLLBACK = 3,
             SETINT = 4,
-            SETSTRING = 5;
+            SETSTRING = 5,
+            BEGIN_CHECKPOINT = 6,
+            END_CHECKPOINT = 7;
 
     int op();
     int txNumber();
+
+    /**
+     * Returns the LSN of the transaction's previous update record,
+     * or of its start record if there is none; -1 for records
+     * that are not part of a transaction's undo chain.
+     */
+    long prevLSN();
+
     void undo (Transaction tx);
 
-    static LogRecord createLogRecord(byte[] bytes) {
-        Page p = new Page(bytes);
-        return switch(p.getInt(0)) {
+    /**
+     * Decodes a log record.
+     * @param lm the log manager, which resolves the ids of file names
+     */
+    static LogRecord createLogRecord(byte[] bytes, LogMgr lm) {
+        LogDecoder d = new LogDecoder(bytes);
+        int op = d.getInt();
+        return switch(op) {
             case CHECKPOINT -> new CheckpointRecord();
-            case START -> new StartRecord(p);
-            case COMMIT -> new CommitRecord(p);
-            case ROLLBACK -> new RollbackRecord(p);
-            case SETINT -> new SetIntRecord(p);
-            case SETSTRING -> new SetStringRecord(p);
-            default -> throw new IllegalStateException("Unexpected value: " + p.getInt(0));
+            case START -> new StartRecord(d);
+            case COMMIT -> new CommitRecord(d);
+            case ROLLBACK -> new RollbackRecord(d);
+            case SETINT -> new SetIntRecord(d, lm);
+            case SETSTRING -> new SetStringRecord(d, lm);
+            case BEGIN_CHECKPOINT -> new BeginCheckpointRecord();
+            case END_CHECKPOINT -> new EndCheckpointRecord(d, lm);
+            default -> throw new IllegalStateException("Unexpected value: " + op);
         };
     }
 }
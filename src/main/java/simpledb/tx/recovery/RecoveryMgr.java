@@ -3,83 +3,260 @@ package simpledb.tx.recovery;
 import simpledb.buffer.Buffer;
 import simpledb.buffer.BufferMgr;
 import simpledb.file.BlockId;
+import simpledb.file.Page;
+import simpledb.log.LogIterator;
 import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
+import simpledb.tx.TransactionManager;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class RecoveryMgr {
+    private static volatile RecoveryMode mode = RecoveryMode.UNDO;
+    private static volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private static volatile RecoveryProgress progress;
+    private TransactionManager txMgr;
     private LogMgr lm;
     private BufferMgr bm;
     private Transaction tx;
     private int txnum;
+    // a read-only transaction writes no log records and has no pages to write
+    private boolean readOnly;
+    // the LSN of the transaction's most recent update record, or of its start record
+    private long lastLSN;
 
-    public RecoveryMgr(Transaction tx, int txnum, LogMgr lm, BufferMgr bm) {
+    /**
+     * Creates the recovery manager of a transaction,
+     * which writes the transaction's start record, unless it is
+     * read-only, and registers it as active with the transaction manager.
+     */
+    public RecoveryMgr(TransactionManager txMgr, Transaction tx, int txnum, LogMgr lm, BufferMgr bm) {
+        this.txMgr = txMgr;
         this.tx = tx;
         this.txnum = txnum;
         this.lm = lm;
         this.bm = bm;
-        StartRecord.writeToLog(lm, txnum);
+        readOnly = tx.isReadOnly();
+        lastLSN = txMgr.begin(txnum, readOnly, () -> readOnly ? -1 : StartRecord.writeToLog(lm, txnum));
+    }
+
+    /**
+     * Writes the begin record of a checkpoint.
+     * @param active receives the transactions active at the begin record,
+     *               each with the LSN of its start record
+     * @return the LSN of the begin record
+     */
+    static long beginCheckpoint(TransactionManager txMgr, LogMgr lm, Map<Integer, Long> active) {
+        return txMgr.beginCheckpoint(() -> BeginCheckpointRecord.writeToLog(lm), active);
+    }
+
+    /**
+     * Sets when transactions write their modified pages.
+     */
+    public static void setMode(RecoveryMode mode) {
+        RecoveryMgr.mode = mode;
+    }
+
+    /**
+     * Sets the number of threads that apply log records during recovery.
+     */
+    public static void setRecoveryThreads(int n) {
+        recoveryThreads = n;
+    }
+
+    /**
+     * Returns the progress of the most recent recovery,
+     * or null if there has been none.
+     */
+    public static RecoveryProgress progress() {
+        return progress;
     }
 
     public void commit() {
-        bm.flushAll(txnum);
-        int lsn = CommitRecord.writeToLog(lm, txnum);
+        if (readOnly) {
+            txMgr.end(txnum);
+            return;
+        }
+        flushPages();
+        long lsn = CommitRecord.writeToLog(lm, txnum);
+        txMgr.end(txnum);
         lm.flush(lsn);
     }
 
     public void rollback() {
+        if (readOnly) {
+            txMgr.end(txnum);
+            return;
+        }
         doRollback();
-        bm.flushAll(txnum);
-        int lsn = RollbackRecord.writeToLog(lm, txnum);
+        flushPages();
+        long lsn = RollbackRecord.writeToLog(lm, txnum);
+        txMgr.end(txnum);
         lm.flush(lsn);
     }
 
     public void recover() {
         doRecover();
         bm.flushAll(txnum);
-        int lsn = CheckpointRecord.writeToLog(lm);
+        long lsn = CheckpointRecord.writeToLog(lm);
+        txMgr.end(txnum);
         lm.flush(lsn);
     }
 
-    public int setInt(Buffer buff, int offset, int newval) {
+    public long setInt(Buffer buff, int offset, int newval) {
         int oldval = buff.contents().getInt(offset);
         BlockId blk = buff.block();
-        return SetIntRecord.writeToLog(lm, txnum, blk, offset, oldval);
+        lastLSN = SetIntRecord.writeToLog(lm, txnum, lastLSN, blk, offset, oldval, newval);
+        return lastLSN;
     }
 
-    public int setString(Buffer buff, int offset, String newval) {
+    public long setString(Buffer buff, int offset, String newval) {
         String oldval = buff.contents().getString(offset);
         BlockId blk = buff.block();
-        return SetStringRecord.writeToLog(lm, txnum, blk, offset, oldval);
+        lastLSN = SetStringRecord.writeToLog(lm, txnum, lastLSN, blk, offset, oldval, newval);
+        return lastLSN;
     }
+
+    private void flushPages() {
+        if (mode == RecoveryMode.REDO_UNDO)
+            bm.flushUnlogged(txnum);
+        else
+            bm.flushAll(txnum);
+    }
+
+    /**
+     * Undoes the transaction's changes by following its chain
+     * of update records back to its start record.
+     * The undos are logged, which extends the chain
+     * but not the part of it still to be walked.
+     */
     private void doRollback() {
-        Iterator<byte[]> iter = lm.iterator();
-        while (iter.hasNext()) {
-            byte[] bytes = iter.next();
-            LogRecord rec = LogRecord.createLogRecord(bytes);
-            if (rec.txNumber() == txnum) {
-                if (rec.op() == LogRecord.START)
-                    return;
-                rec.undo(tx);;
-            }
+        long lsn = lastLSN;
+        while (lsn >= 0) {
+            LogRecord rec = LogRecord.createLogRecord(lm.read(lsn), lm);
+            if (rec.op() == LogRecord.START)
+                return;
+            rec.undo(tx);
+            lsn = rec.prevLSN();
         }
     }
 
+    /**
+     * Restores the database after a crash by repeating history.
+     * The log is read backwards to the redo point: the oldest of
+     * the last completed checkpoint's begin record, the recLSNs in its
+     * dirty page table and the start records of the transactions it lists.
+     * The changes since the redo point are then redone in log order,
+     * and the changes of the unfinished transactions undone in reverse,
+     * by several threads that each take a block at a time.
+     * A quiescent checkpoint is a redo point by itself.
+     */
     private void doRecover() {
-        Collection<Integer> finishedTxs = new ArrayList<Integer>();
-        Iterator<byte[]> iter = lm.iterator();
+        List<LogRecord> recs = new ArrayList<>();
+        Set<Integer> finishedTxs = new HashSet<>();
+        long checkpoint = -1;
+        long redoLSN = -1;
+        long oldest = Long.MAX_VALUE;
+        LogIterator iter = lm.iterator();
         while (iter.hasNext()) {
             byte[] bytes = iter.next();
-            LogRecord rec = LogRecord.createLogRecord(bytes);
+            if (redoLSN >= 0 && iter.lsn() < redoLSN)
+                break;
+            LogRecord rec = LogRecord.createLogRecord(bytes, lm);
             if (rec.op() == LogRecord.CHECKPOINT)
-                return;
-            if (rec.op() == LogRecord.COMMIT || rec.op() == LogRecord.ROLLBACK)
+                break;
+            recs.add(rec);
+            if (rec.op() == LogRecord.END_CHECKPOINT) {
+                EndCheckpointRecord end = (EndCheckpointRecord) rec;
+                // a checkpoint whose last end record is missing was not completed
+                if (checkpoint < 0 && end.isLast())
+                    checkpoint = end.beginLSN();
+                if (end.beginLSN() == checkpoint) {
+                    for (long lsn : end.activeTransactions().values())
+                        oldest = Math.min(oldest, lsn);
+                    for (long lsn : end.dirtyPages().values())
+                        oldest = Math.min(oldest, lsn);
+                }
+            }
+            else if (rec.op() == LogRecord.BEGIN_CHECKPOINT) {
+                if (checkpoint >= 0 && redoLSN < 0)
+                    redoLSN = Math.min(checkpoint, oldest);
+            }
+            else if (rec.op() == LogRecord.COMMIT || rec.op() == LogRecord.ROLLBACK)
                 finishedTxs.add(rec.txNumber());
-            else if (!finishedTxs.contains(rec.txNumber()))
-                rec.undo(tx);
         }
+        apply(recs, finishedTxs);
+    }
+
+    /**
+     * Redoes and undoes the update records in parallel, a block at a time.
+     * A block's records are redone in log order, and then those of the
+     * unfinished transactions undone in reverse; blocks are independent,
+     * so they can be processed in any order.
+     * The undos are not logged: recovery writes its checkpoint only after
+     * its pages are on disk, so a crash during recovery leaves the log
+     * unchanged and the next recovery simply does the work again.
+     * @param recs the records read from the log, most recent first
+     */
+    private void apply(List<LogRecord> recs, Set<Integer> finishedTxs) {
+        Map<BlockId, List<UpdateRecord>> blocks = new LinkedHashMap<>();
+        int total = 0;
+        for (int i = recs.size() - 1; i >= 0; i--) {
+            if (recs.get(i) instanceof UpdateRecord rec) {
+                blocks.computeIfAbsent(rec.block(), b -> new ArrayList<>()).add(rec);
+                total++;
+            }
+        }
+        RecoveryProgress p = new RecoveryProgress();
+        p.setTotal(total);
+        progress = p;
+        // each worker pins one buffer at a time
+        int nthreads = Math.max(1, Math.min(recoveryThreads, bm.numBuffers() / 2));
+        ExecutorService workers = Executors.newFixedThreadPool(nthreads, r -> {
+            Thread t = new Thread(r, "recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (Map.Entry<BlockId, List<UpdateRecord>> e : blocks.entrySet())
+                pending.add(workers.submit(() -> apply(e.getKey(), e.getValue(), finishedTxs, p)));
+            for (Future<?> f : pending)
+                f.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("cannot recover", e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("cannot recover", e);
+        } finally {
+            workers.shutdown();
+        }
+        p.finished();
+    }
+
+    private void apply(BlockId blk, List<UpdateRecord> recs, Set<Integer> finishedTxs, RecoveryProgress p) {
+        Buffer buff = bm.pin(blk);
+        try {
+            Page page = buff.contents();
+            for (UpdateRecord rec : recs)
+                rec.redo(page);
+            for (int i = recs.size() - 1; i >= 0; i--) {
+                UpdateRecord rec = recs.get(i);
+                if (!finishedTxs.contains(rec.txNumber()))
+                    rec.undo(page);
+            }
+            buff.setModified(txnum, -1);
+        } finally {
+            bm.unpin(buff);
+        }
+        p.applied(recs.size());
     }
 }
@@ -0,0 +1,23 @@
+package simpledb.tx.recovery;
+
+/**
+ * When a transaction's modified pages must reach the disk.
+ * Recovery is the same in both modes: it repeats history by redoing
+ * the logged changes since the last checkpoint, and then undoes
+ * the changes of the transactions that did not finish.
+ */
+public enum RecoveryMode {
+    /**
+     * A commit or rollback writes the transaction's modified pages
+     * before its log record, so redo never has anything to do
+     * for a finished transaction.
+     */
+    UNDO,
+    /**
+     * A commit or rollback only forces the log; modified pages are
+     * written later by the page cleaner or on replacement, and recovery
+     * redoes whatever did not reach the disk. Pages changed without
+     * logging, such as newly formatted blocks, are still written at commit.
+     */
+    REDO_UNDO
+}
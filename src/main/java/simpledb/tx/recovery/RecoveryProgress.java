@@ -0,0 +1,49 @@
+package simpledb.tx.recovery;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a crash recovery:
+ * how many update records it has to redo or undo,
+ * and how many of them it has applied so far.
+ */
+public class RecoveryProgress {
+    private volatile long total = 0;
+    private final AtomicLong applied = new AtomicLong();
+    private volatile boolean done = false;
+
+    public long recordsToApply() {
+        return total;
+    }
+
+    public long recordsApplied() {
+        return applied.get();
+    }
+
+    /**
+     * Returns the fraction of the records applied, between 0 and 1.
+     */
+    public double fraction() {
+        if (done) {
+            return 1.0;
+        }
+        long t = total;
+        return t == 0 ? 0.0 : (double) applied.get() / t;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    void setTotal(long total) {
+        this.total = total;
+    }
+
+    void applied(int n) {
+        applied.addAndGet(n);
+    }
+
+    void finished() {
+        done = true;
+    }
+}
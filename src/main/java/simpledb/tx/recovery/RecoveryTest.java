@@ -7,8 +7,10 @@ import simpledb.file.Page;
 import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
+import simpledb.tx.TransactionManager;
 
 public class RecoveryTest {
+    public static TransactionManager txMgr;
     public static FileMgr fm;
     public static LogMgr lm;
     public static BufferMgr bm;
@@ -16,6 +18,7 @@ public class RecoveryTest {
 
     public static void main(String[] args) {
         SimpleDB db = new SimpleDB("datadir/recoverytest", 400, 8);
+        txMgr = db.txMgr();
         fm = db.fileMgr();
         lm = db.logMgr();
         bm = db.bufferMgr();
@@ -31,8 +34,8 @@ public class RecoveryTest {
     }
 
     private static void initialize() {
-        Transaction tx1 = new Transaction(fm, lm, bm);
-        Transaction tx2 = new Transaction(fm, lm, bm);
+        Transaction tx1 = new Transaction(txMgr, fm, lm, bm);
+        Transaction tx2 = new Transaction(txMgr, fm, lm, bm);
         tx1.pin(blk0);
         tx2.pin(blk1);
         int pos = 0;
@@ -49,8 +52,8 @@ public class RecoveryTest {
     }
 
     private static void modify() {
-        Transaction tx3 = new Transaction(fm, lm, bm);
-        Transaction tx4 = new Transaction(fm, lm, bm);
+        Transaction tx3 = new Transaction(txMgr, fm, lm, bm);
+        Transaction tx4 = new Transaction(txMgr, fm, lm, bm);
         tx3.pin(blk0);
         tx4.pin(blk1);
         int pos = 0;
@@ -72,7 +75,7 @@ public class RecoveryTest {
     }
 
     private static void recover() {
-        Transaction tx = new Transaction(fm, lm, bm);
+        Transaction tx = new Transaction(txMgr, fm, lm, bm);
         tx.recover();
         printValues("After recovery:");
     }
@@ -5,25 +5,23 @@ import simpledb.file.Page;
 import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
 
-public class SetIntRecord implements LogRecord {
+public class SetIntRecord implements UpdateRecord {
     private int txnum;
+    private long prevLSN;
     private BlockId blk;
 
     private int offset;
     private int val;
+    private int newval;
 
-    public SetIntRecord(Page p) {
-        int tpos = Integer.BYTES;
-        txnum = p.getInt(tpos);
-        int fpos = tpos + Integer.BYTES;
-        String filename = p.getString(fpos);
-        int bpos = fpos + Page.maxLength(filename.length());
-        int blknum = p.getInt(bpos);
-        blk = new BlockId(filename, blknum);
-        int opos = bpos + Integer.BYTES;
-        offset = p.getInt(opos);
-        int vpos = opos + Integer.BYTES;
-        val = p.getInt(vpos);
+    SetIntRecord(LogDecoder d, LogMgr lm) {
+        txnum = d.getInt();
+        prevLSN = d.getLong();
+        String filename = lm.fileName(d.getInt());
+        blk = new BlockId(filename, d.getInt());
+        offset = d.getInt();
+        val = d.getInt();
+        newval = d.getInt();
     }
 
 
@@ -37,6 +35,20 @@ public class SetIntRecord implements LogRecord {
         return txnum;
     }
 
+    @Override
+    public long prevLSN() {
+        return prevLSN;
+    }
+
+    public String toString() {
+        return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + " " + newval + ">";
+    }
+
+    /**
+     * Restores the old value.
+     * The undo is logged like any other change,
+     * so that redo during recovery repeats it.
+     */
     @Override
     public void undo(Transaction tx) {
         tx.pin(blk);
@@ -44,20 +56,32 @@ public class SetIntRecord implements LogRecord {
         tx.unpin(blk);
     }
 
-    public static int writeToLog(LogMgr lm, int txnum, BlockId blk, int offset, int val) {
-        int tpos = Integer.BYTES;
-        int fpos = tpos + Integer.BYTES;
-        int bpos = fpos + Page.maxLength(blk.fileName().length());
-        int opos = bpos + Integer.BYTES;
-        int vpos = opos + Integer.BYTES;
-        byte[] rec = new byte[vpos + Integer.BYTES];
-        Page p = new Page(rec);
-        p.setInt(0, SETINT);
-        p.setInt(tpos, txnum);
-        p.setString(fpos, blk.fileName());
-        p.setInt(bpos, blk.number());
-        p.setInt(opos, offset);
-        p.setInt(vpos, val);
+    @Override
+    public BlockId block() {
+        return blk;
+    }
+
+    @Override
+    public void redo(Page p) {
+        p.setInt(offset, newval);
+    }
+
+    @Override
+    public void undo(Page p) {
+        p.setInt(offset, val);
+    }
+
+    public static long writeToLog(LogMgr lm, int txnum, long prevLSN, BlockId blk, int offset, int val, int newval) {
+        byte[] rec = new LogEncoder()
+                .putInt(SETINT)
+                .putInt(txnum)
+                .putLong(prevLSN)
+                .putInt(lm.fileId(blk.fileName()))
+                .putInt(blk.number())
+                .putInt(offset)
+                .putInt(val)
+                .putInt(newval)
+                .toBytes();
         return lm.append(rec);
     }
 }
@@ -5,23 +5,20 @@ import simpledb.file.Page;
 import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
 
-public class SetStringRecord implements LogRecord {
+public class SetStringRecord implements UpdateRecord {
     private int txnum, offset;
-    private String val;
+    private long prevLSN;
+    private String val, newval;
     private BlockId blk;
 
-    public SetStringRecord(Page p) {
-        int tpos = Integer.BYTES;
-        txnum = p.getInt(tpos);
-        int fpos = tpos + Integer.BYTES;
-        String filename = p.getString(fpos);
-        int bpos = fpos + Page.maxLength(filename.length());
-        int blknum = p.getInt(bpos);
-        blk = new BlockId(filename, blknum);
-        int opos = bpos + Integer.BYTES;
-        offset = p.getInt(opos);
-        int vpos = opos + Integer.BYTES;
-        val = p.getString(vpos);
+    SetStringRecord(LogDecoder d, LogMgr lm) {
+        txnum = d.getInt();
+        prevLSN = d.getLong();
+        String filename = lm.fileName(d.getInt());
+        blk = new BlockId(filename, d.getInt());
+        offset = d.getInt();
+        val = d.getString();
+        newval = d.getString();
     }
 
     @Override
@@ -34,33 +31,53 @@ public class SetStringRecord implements LogRecord {
         return txnum;
     }
 
+    @Override
+    public long prevLSN() {
+        return prevLSN;
+    }
+
     public String toString() {
-        return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+        return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + " " + newval + ">";
     }
 
+    /**
+     * Restores the old value.
+     * The undo is logged like any other change,
+     * so that redo during recovery repeats it.
+     */
     @Override
     public void undo(Transaction tx) {
         tx.pin(blk);
-        tx.setString(blk, offset, val, false); // don't log the undo!
+        tx.setString(blk, offset, val, true);
         tx.unpin(blk);
     }
 
-    public static int writeToLog(LogMgr lm, int txnum, BlockId blk, int offset, String val) {
-        int tpos = Integer.BYTES;
-        int fpos = tpos + Integer.BYTES;
-        int bpos = fpos + Page.maxLength(blk.fileName().length());
-        int opos = bpos + Integer.BYTES;
-        int vpos = opos + Integer.BYTES;
-        int reclen = vpos + Page.maxLength(val.length());
-        byte[] rec = new byte[reclen];
-        Page p = new Page(rec);
-        p.setInt(0, SETSTRING);
-        p.setInt(tpos, txnum);
-        p.setString(fpos, blk.fileName());
-        p.setInt(bpos, blk.number());
-        p.setInt(opos, offset);
-        p.setString(vpos, val);
-        return lm.append(rec);
+    @Override
+    public BlockId block() {
+        return blk;
+    }
 
+    @Override
+    public void redo(Page p) {
+        p.setString(offset, newval);
+    }
+
+    @Override
+    public void undo(Page p) {
+        p.setString(offset, val);
+    }
+
+    public static long writeToLog(LogMgr lm, int txnum, long prevLSN, BlockId blk, int offset, String val, String newval) {
+        byte[] rec = new LogEncoder()
+                .putInt(SETSTRING)
+                .putInt(txnum)
+                .putLong(prevLSN)
+                .putInt(lm.fileId(blk.fileName()))
+                .putInt(blk.number())
+                .putInt(offset)
+                .putString(val)
+                .putString(newval)
+                .toBytes();
+        return lm.append(rec);
     }
 }
@@ -1,15 +1,13 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
 import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
 
 public class StartRecord implements LogRecord {
     private int txnum;
 
-    public StartRecord(Page p) {
-        int tpos = Integer.BYTES;
-        txnum = p.getInt(tpos);
+    StartRecord(LogDecoder d) {
+        txnum = d.getInt();
     }
 
     @Override
@@ -22,6 +20,11 @@ public class StartRecord implements LogRecord {
         return txnum;
     }
 
+    @Override
+    public long prevLSN() {
+        return -1;
+    }
+
     @Override
     public void undo(Transaction tx) {
     }
@@ -30,11 +33,8 @@ public class StartRecord implements LogRecord {
         return "<START " + txnum + ">";
     }
 
-    public static int writeToLog(LogMgr lm, int txnum) {
-        byte[] rec = new byte[2 * Integer.BYTES];
-        Page p = new Page(rec);
-        p.setInt(0, START);
-        p.setInt(Integer.BYTES, txnum);
+    public static long writeToLog(LogMgr lm, int txnum) {
+        byte[] rec = new LogEncoder().putInt(START).putInt(txnum).toBytes();
         return lm.append(rec);
     }
 }
@@ -0,0 +1,17 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.BlockId;
+import simpledb.file.Page;
+
+/**
+ * A log record of a change to a value in a block.
+ * Recovery redoes and undoes these records directly
+ * on the block's page, without going through a transaction.
+ */
+interface UpdateRecord extends LogRecord {
+    BlockId block();
+
+    void redo(Page p);
+
+    void undo(Page p);
+}
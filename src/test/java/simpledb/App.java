@@ -44,6 +44,7 @@ import simpledb.record.RecordPage;
 import simpledb.record.Schema;
 import simpledb.record.TableScan;
 import simpledb.tx.Transaction;
+import simpledb.tx.TransactionManager;
 
 public class App {
 
@@ -75,6 +76,7 @@ public class App {
         // if we don't delete it, the program will fail when reading the contents
         new File(dbDirectory, logfile).delete();
         LogMgr lm = new LogMgr(fm, logfile);
+        TransactionManager txMgr = new TransactionManager(fm);
         printLogRecords(lm, "The initial empty log file:"); // print an empty log file
         System.out.println("done");
         createRecords(lm, 1, 35);
@@ -124,8 +126,8 @@ public class App {
         BlockId blk0 = new BlockId("testfile", 0);
         BlockId blk1 = new BlockId("testfile", 1);
         // init
-        Transaction tx1 = new Transaction(fm, lm, bm);
-        Transaction tx2 = new Transaction(fm, lm, bm);
+        Transaction tx1 = new Transaction(txMgr, fm, lm, bm);
+        Transaction tx2 = new Transaction(txMgr, fm, lm, bm);
         tx1.pin(blk0);
         tx2.pin(blk1);
         pos = 0;
@@ -141,8 +143,8 @@ public class App {
         printValues(fm, "After initialization:", blk0, blk1);
 
         // modify
-        Transaction tx3 = new Transaction(fm, lm, bm);
-        Transaction tx4 = new Transaction(fm, lm, bm);
+        Transaction tx3 = new Transaction(txMgr, fm, lm, bm);
+        Transaction tx4 = new Transaction(txMgr, fm, lm, bm);
         tx3.pin(blk0);
         tx4.pin(blk1);
         pos = 0;
@@ -166,14 +168,14 @@ public class App {
         // You cannot just run this because tx4 has lock on blk1
         // but only tx4.ConcurMgr can release it by either tx4.commit() or
         // tx4.rollback()
-        // Transaction tx5 = new Transaction(fm, lm, bm);
+        // Transaction tx5 = new Transaction(txMgr, fm, lm, bm);
         // tx5.recover();
         // printValues(fm, "After recovery", blk0, blk1);
 
         // 6. Record Management
         System.out.println("6. Record Management --------------------------");
         System.out.println("6.1. RecordPage -----------------------");
-        Transaction tx = new Transaction(fm, lm, bm);
+        Transaction tx = new Transaction(txMgr, fm, lm, bm);
         Schema sch = new Schema();
         sch.addIntField("A");
         sch.addStringField("B", 9);
@@ -224,7 +226,7 @@ public class App {
         tx.commit();
 
         System.out.println("6.2. TableScan -----------------------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         System.out.println("Filling the table with 50 random records with TableScan");
         TableScan ts = new TableScan(tx, "T", layout);
         for (int i = 0; i < 50; i++) {
@@ -262,7 +264,7 @@ public class App {
         // 7. Metadata Management
         System.out.println("7.1. TableMgr ------------------");
         bm = new BufferMgr(fm, lm, 8); // numbuffs: 3 is not enough
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         TableMgr tm = new TableMgr(true, tx);
         sch = new Schema();
         sch.addIntField("A");
@@ -287,7 +289,7 @@ public class App {
         tx.commit();
 
         System.out.println("7.5. MetadataMgr ----------------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         MetadataMgr metadataMgr = new MetadataMgr(true, tx);
         sch = new Schema();
         sch.addStringField("name", 50);
@@ -308,7 +310,7 @@ public class App {
 
         // 8. Query Processing
         System.out.println("8.1. SelectScan -------------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         // Schema for T1
         Schema sch1 = new Schema();
         sch1.addIntField("A");
@@ -352,7 +354,7 @@ public class App {
         tx.commit();
 
         System.out.println("8.3. ProjectScan -------------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         // Schema for T2
         sch2 = new Schema();
         sch2.addIntField("C");
@@ -439,7 +441,7 @@ public class App {
 
         // 12 Indexing
         System.out.println("12. Indexing-------------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         metadataMgr = new MetadataMgr(false, tx);
         sch = new Schema();
         sch.addStringField("fld1", 10);
@@ -501,7 +503,7 @@ public class App {
         // 13. Materialization and Sorting
         System.out.println("13. Materialization and Sorting -------------");
         System.out.println("13.1. Materialization --------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         plan = new TablePlan(tx, "T3", metadataMgr); // metadataMgr created above
         plan = new MaterializePlan(tx, plan);
         Scan scan = plan.open();
@@ -513,7 +515,7 @@ public class App {
         tx.commit();
 
         System.out.println("13.2. Sorting --------------------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         plan = new TablePlan(tx, "T1", metadataMgr);
         plan = new SortPlan(tx, plan, Arrays.asList("A"));
         scan = plan.open();
@@ -525,7 +527,7 @@ public class App {
         tx.commit();
 
         System.out.println("13.3. GroupBy and Aggregation --------------------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         plan = new TablePlan(tx, "T3", metadataMgr);
         AggregationFn countfn = new CountFn("fld2");
         AggregationFn maxfn = new MaxFn("fld2");
@@ -539,7 +541,7 @@ public class App {
 
         System.out.println("13.4. MergeJoin --------------------");
         bm = new BufferMgr(fm, lm, 16); // buffer 8 is not enough
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         p1 = new TablePlan(tx, "T1", metadataMgr); // T1 A:int, B:String
         p2 = new TablePlan(tx, "T2", metadataMgr); // T3 fld1:String, fld2:int
         plan = new MergeJoinPlan(tx, p1, p2, "A", "C"); // JOIN ON T1.A = T3.fld2
@@ -558,7 +560,7 @@ public class App {
 
         // Exercise 13.8. Sort empty table
         System.out.println("13.8. Sort empty table --------------------");
-        tx = new Transaction(fm, lm, bm);
+        tx = new Transaction(txMgr, fm, lm, bm);
         sch = new Schema();
         sch.addIntField("intfld");
         layout = new Layout(sch);
@@ -590,7 +592,7 @@ public class App {
         System.out.print("Creating records: ");
         for (int i = start; i <= end; i++) {
             byte[] rec = createLogRecord("record" + i, i + 100);
-            int lsn = lm.append(rec);
+            long lsn = lm.append(rec);
             System.out.print(lsn + " ");
         }
         System.out.println();